@@ -0,0 +1,406 @@
+(ns fortress.ring.load-test
+  "Loopback macro benchmark, starts fortress and drives it with a netty
+  client either at fixed concurrency (closed loop) or at fixed request
+  rates (open loop). Open loop latencies are measured from the time the
+  request was due, so queueing in the client is not hidden.
+
+  Client and server share the JVM, GC and allocation figures cover both."
+  (:require [clojure.edn :as edn]
+            [clojure.java.io :as io]
+            [fortress.ring.server :as server])
+  (:import [fortress.ring.metrics Histogram]
+           [io.netty.bootstrap Bootstrap]
+           [io.netty.buffer Unpooled]
+           [io.netty.channel Channel ChannelFuture ChannelFutureListener ChannelInitializer ChannelInboundHandlerAdapter]
+           [io.netty.channel.nio NioEventLoopGroup]
+           [io.netty.channel.socket.nio NioSocketChannel]
+           [io.netty.handler.codec.http DefaultFullHttpRequest FullHttpResponse HttpClientCodec HttpHeaders
+            HttpMethod HttpObjectAggregator HttpVersion]
+           [io.netty.handler.codec.spdy SpdyFrameCodec SpdySessionHandler SpdyHttpEncoder SpdyHttpDecoder SpdyHttpHeaders]
+           [io.netty.handler.ssl SslHandler]
+           [io.netty.util ReferenceCountUtil]
+           [java.io File FileInputStream InputStream RandomAccessFile]
+           [java.lang.management ManagementFactory]
+           [java.security KeyStore]
+           [java.util.concurrent ConcurrentHashMap ConcurrentLinkedQueue CountDownLatch Executors TimeUnit]
+           [java.util.concurrent.atomic AtomicInteger AtomicLong]
+           [javax.net.ssl KeyManagerFactory SSLContext TrustManager X509TrustManager]
+           [org.eclipse.jetty.npn NextProtoNego NextProtoNego$ClientProvider]))
+
+(def default-options {:host "127.0.0.1"
+                      :port 8090
+                      :ssl-port 8453
+                      :duration 10
+                      :warmup 3
+                      :concurrency 32
+                      :rates [1000 5000]
+                      :max-connections 256
+                      :file-size (* 1024 1024)
+                      :upload-size (* 4 1024 1024)
+                      :scenarios [:small :small-close :file :upload :spdy]
+                      :server {}})
+
+(def scenarios
+  {:small {:path "/small"}
+   :small-close {:path "/small" :close? true}
+   ;; plain http file responses always close the connection
+   :file {:path "/file" :close? true}
+   :upload {:path "/upload" :upload? true}
+   :spdy {:path "/small" :spdy? true}})
+
+;; Server side
+
+(defn- drain [^InputStream in]
+  (let [buffer (byte-array 65536)]
+    (with-open [in in]
+      (loop [total 0]
+        (let [n (.read in buffer)]
+          (if (neg? n)
+            total
+            (recur (+ total n))))))))
+
+(defn- test-handler [^File file]
+  (fn [{:keys [uri body]}]
+    (case uri
+      "/small" {:status 200 :body "ok"}
+      "/file" {:status 200 :body file}
+      "/upload" {:status 200 :body (str (drain body))}
+      {:status 404 :body "unknown"})))
+
+(defn- sized-file [size]
+  (let [file (File/createTempFile "fortress-load" ".bin")]
+    (.deleteOnExit file)
+    (with-open [raf (RandomAccessFile. file "rw")]
+      (.setLength raf size))
+    file))
+
+(defn- ssl-context [{:keys [keystore keystore-password]}]
+  (when keystore
+    (let [password (.toCharArray (str keystore-password))
+          store (doto (KeyStore/getInstance "JKS")
+                  (.load (FileInputStream. (str keystore)) password))
+          kmf (doto (KeyManagerFactory/getInstance "SunX509")
+                (.init store password))]
+      (doto (SSLContext/getInstance "TLS")
+        (.init (.getKeyManagers kmf) nil nil)))))
+
+;; Client side
+
+(def ^:private trust-all
+  (reify X509TrustManager
+    (checkClientTrusted [_ _ _])
+    (checkServerTrusted [_ _ _])
+    (getAcceptedIssuers [_] (make-array java.security.cert.X509Certificate 0))))
+
+(defn- client-ssl-engine []
+  (let [context (doto (SSLContext/getInstance "TLS")
+                  (.init nil (into-array TrustManager [trust-all]) nil))
+        engine (doto (.createSSLEngine context)
+                 (.setUseClientMode true))]
+    (NextProtoNego/put engine (reify NextProtoNego$ClientProvider
+                                (supports [_] true)
+                                (unsupported [_])
+                                (selectProtocol [_ protocols] "spdy/3")))
+    engine))
+
+(defn- client-handler
+  "Hands each response to the callback taken by take-callback, failing
+  every pending callback with nil when the connection goes away"
+  [take-callback fail-all]
+  (proxy [ChannelInboundHandlerAdapter] []
+    (channelRead [ctx msg]
+      (try
+        (when-let [callback (take-callback msg)]
+          (callback msg))
+        (finally
+          (ReferenceCountUtil/release msg))))
+    (channelInactive [ctx]
+      (fail-all))
+    (exceptionCaught [ctx cause]
+      (.close ctx))))
+
+(defn- http-pipeline [^Channel ch pending]
+  (doto (.pipeline ch)
+    (.addLast "codec" (HttpClientCodec.))
+    (.addLast "aggregator" (HttpObjectAggregator. Integer/MAX_VALUE))
+    (.addLast "handler" (client-handler (fn [_] (.poll pending))
+                                        #(loop []
+                                           (when-let [callback (.poll pending)]
+                                             (callback nil)
+                                             (recur)))))))
+
+(defn- spdy-pipeline [^Channel ch ^ConcurrentHashMap pending]
+  (doto (.pipeline ch)
+    (.addLast "ssl" (SslHandler. (client-ssl-engine)))
+    (.addLast "spdyCodec" (SpdyFrameCodec. 3))
+    (.addLast "spdySession" (SpdySessionHandler. 3 false))
+    (.addLast "spdyEncoder" (SpdyHttpEncoder. 3))
+    (.addLast "spdyDecoder" (SpdyHttpDecoder. 3 Integer/MAX_VALUE))
+    (.addLast "handler" (client-handler #(.remove pending (SpdyHttpHeaders/getStreamId %))
+                                        #(doseq [id (keys pending)]
+                                           (when-let [callback (.remove pending id)]
+                                             (callback nil)))))))
+
+(defn- connect!
+  "Opens a connection asynchronously and calls on-ready with a map holding
+  the channel and a send function, or with nil if the connection failed"
+  [^Bootstrap bootstrap {:keys [host port ssl-port]} spdy? on-ready]
+  (let [pending (if spdy? (ConcurrentHashMap.) (ConcurrentLinkedQueue.))
+        stream-ids (AtomicInteger. -1)
+        bootstrap (doto (.clone bootstrap)
+                    (.handler (proxy [ChannelInitializer] []
+                                (initChannel [ch]
+                                  (if spdy?
+                                    (spdy-pipeline ch pending)
+                                    (http-pipeline ch pending))))))
+        connection (fn [^Channel ch]
+                     {:channel ch
+                      :send (fn [request callback]
+                              (if spdy?
+                                (let [id (.addAndGet stream-ids 2)]
+                                  (SpdyHttpHeaders/setStreamId request id)
+                                  (.put ^ConcurrentHashMap pending id callback))
+                                (.add ^ConcurrentLinkedQueue pending callback))
+                              (.writeAndFlush ch request))})]
+    (.addListener (.connect bootstrap ^String host (int (if spdy? ssl-port port)))
+                  (reify ChannelFutureListener
+                    (operationComplete [_ f]
+                      (if-not (.isSuccess f)
+                        (on-ready nil)
+                        (let [ch (.channel f)]
+                          (if spdy?
+                            (.addListener (.handshakeFuture (.get (.pipeline ch) SslHandler))
+                                          (reify io.netty.util.concurrent.GenericFutureListener
+                                            (operationComplete [_ hf]
+                                              (on-ready (when (.isSuccess hf)
+                                                          (connection ch))))))
+                            (on-ready (connection ch))))))))))
+
+(defn- multipart-body [size]
+  (let [boundary "----fortressloadtest"
+        head (.getBytes (str "--" boundary "\r\n"
+                             "Content-Disposition: form-data; name=\"file\"; filename=\"load.bin\"\r\n"
+                             "Content-Type: application/octet-stream\r\n\r\n"))
+        tail (.getBytes (str "\r\n--" boundary "--\r\n"))
+        body (byte-array (+ (count head) size (count tail)))]
+    (System/arraycopy head 0 body 0 (count head))
+    (System/arraycopy tail 0 body (+ (count head) size) (count tail))
+    {:content-type (str "multipart/form-data; boundary=" boundary)
+     :bytes body}))
+
+(defn- request-builder [{:keys [path close? upload?]} {:keys [host port upload-size]}]
+  (let [upload (when upload? (multipart-body upload-size))]
+    (fn []
+      (let [request (if upload
+                      (doto (DefaultFullHttpRequest. HttpVersion/HTTP_1_1 HttpMethod/POST path
+                                                     (Unpooled/wrappedBuffer ^bytes (:bytes upload)))
+                        (HttpHeaders/setHeader "Content-Type" (:content-type upload))
+                        (HttpHeaders/setContentLength (alength ^bytes (:bytes upload))))
+                      (DefaultFullHttpRequest. HttpVersion/HTTP_1_1 HttpMethod/GET path))]
+        (HttpHeaders/setHost request (str host ":" port))
+        (when close?
+          (HttpHeaders/setKeepAlive request false))
+        request))))
+
+;; Measurement
+
+(defn- allocated-bytes []
+  (let [bean (ManagementFactory/getThreadMXBean)]
+    (if (instance? com.sun.management.ThreadMXBean bean)
+      (reduce + (filter pos? (.getThreadAllocatedBytes ^com.sun.management.ThreadMXBean bean
+                                                       (.getAllThreadIds bean))))
+      0)))
+
+(defn- jvm-stats []
+  (let [gcs (ManagementFactory/getGarbageCollectorMXBeans)]
+    {:gc-count (reduce + (map #(.getCollectionCount %) gcs))
+     :gc-time (reduce + (map #(.getCollectionTime %) gcs))
+     :allocated (allocated-bytes)
+     :time (System/nanoTime)}))
+
+(defn- new-stats []
+  {:latency (Histogram.)
+   :errors (AtomicLong.)
+   :outstanding (AtomicLong.)})
+
+(defn- record! [{:keys [^Histogram latency ^AtomicLong errors ^AtomicLong outstanding]} started response]
+  (.decrementAndGet outstanding)
+  (if (and response (= 200 (.code (.getStatus ^FullHttpResponse response))))
+    (.record latency (- (System/nanoTime) started))
+    (.incrementAndGet errors)))
+
+(defn- issue! [{:keys [send]} build-request stats started on-done]
+  (.incrementAndGet ^AtomicLong (:outstanding stats))
+  (send (build-request)
+        (fn [response]
+          (record! stats started response)
+          (on-done (not (nil? response))))))
+
+(defn- await-outstanding [{:keys [^AtomicLong outstanding]}]
+  (let [deadline (+ (System/currentTimeMillis) 10000)]
+    (while (and (pos? (.get outstanding))
+                (< (System/currentTimeMillis) deadline))
+      (Thread/sleep 10))))
+
+(defn- closed-loop
+  "Keeps concurrency requests in flight until seconds have elapsed"
+  [bootstrap options {:keys [spdy? close?]} build-request concurrency seconds]
+  (let [stats (new-stats)
+        end (+ (System/nanoTime) (* seconds 1000000000))
+        done (CountDownLatch. concurrency)
+        shared (when spdy?
+                 (let [p (promise)]
+                   (connect! bootstrap options true #(deliver p %))
+                   @p))]
+    (dotimes [_ concurrency]
+      (letfn [(retire [conn]
+                (when (and conn (not spdy?))
+                  (.close ^Channel (:channel conn))))
+              (run [conn]
+                (cond
+                  (>= (System/nanoTime) end) (do (retire conn)
+                                                 (.countDown done))
+                  (and conn (.isActive ^Channel (:channel conn)))
+                  (issue! conn build-request stats (System/nanoTime)
+                          (fn [ok?]
+                            (if (and ok? (or spdy? (not close?)))
+                              (run conn)
+                              (do (retire conn)
+                                  (run (when spdy? conn))))))
+                  spdy? (do (.incrementAndGet ^AtomicLong (:errors stats))
+                            (.countDown done))
+                  :else (connect! bootstrap options false
+                                  (fn [conn]
+                                    (when-not conn
+                                      (.incrementAndGet ^AtomicLong (:errors stats)))
+                                    (run conn)))))]
+        (run shared)))
+    (.await done)
+    (when shared
+      (.close ^Channel (:channel shared)))
+    stats))
+
+(defn- open-loop
+  "Issues requests at a fixed rate for seconds, connections are opened on
+  demand up to max-connections and requests wait in a backlog otherwise"
+  [bootstrap {:keys [max-connections] :as options} {:keys [spdy? close?]} build-request rate seconds]
+  (let [stats (new-stats)
+        backlog (ConcurrentLinkedQueue.)
+        idle (ConcurrentLinkedQueue.)
+        connections (AtomicInteger.)
+        start (System/nanoTime)
+        total (long (* rate seconds))
+        issued (AtomicLong.)
+        shared (when spdy?
+                 (let [p (promise)]
+                   (connect! bootstrap options true #(deliver p %))
+                   @p))
+        scheduler (Executors/newSingleThreadScheduledExecutor)]
+    (letfn [(retire [conn]
+              (when conn
+                (.close ^Channel (:channel conn)))
+              (.decrementAndGet connections))
+            (release [conn]
+              (if (and conn (.isActive ^Channel (:channel conn)))
+                (if-let [due (.poll backlog)]
+                  (issue! conn build-request stats due (fn [ok?]
+                                                         (if (and ok? (not close?))
+                                                           (release conn)
+                                                           (retire conn))))
+                  (.add idle conn))
+                (retire conn)))
+            (dispatch []
+              (let [now (System/nanoTime)
+                    due (min total (long (/ (* (- now start) rate) 1e9)))]
+                (while (< (.get issued) due)
+                  (.add backlog (+ start (long (/ (* (.getAndIncrement issued) 1e9) rate)))))
+                (if spdy?
+                  (loop []
+                    (when-let [due (.poll backlog)]
+                      (if shared
+                        (issue! shared build-request stats due (fn [_]))
+                        (.incrementAndGet ^AtomicLong (:errors stats)))
+                      (recur)))
+                  (loop []
+                    (when-not (.isEmpty backlog)
+                      (if-let [conn (.poll idle)]
+                        (do (release conn) (recur))
+                        (when (< (.get connections) max-connections)
+                          (.incrementAndGet connections)
+                          (connect! bootstrap options false
+                                    (fn [conn]
+                                      (when-not conn
+                                        (.incrementAndGet ^AtomicLong (:errors stats)))
+                                      (release conn)))
+                          (recur))))))))]
+      (.scheduleAtFixedRate scheduler ^Runnable dispatch 0 1 TimeUnit/MILLISECONDS)
+      (Thread/sleep (* seconds 1000))
+      (.shutdown scheduler)
+      (.awaitTermination scheduler 1 TimeUnit/SECONDS)
+      (await-outstanding stats)
+      (doseq [conn (concat idle (when shared [shared]))]
+        (.close ^Channel (:channel conn)))
+      (assoc stats :backlog (.size backlog)))))
+
+(defn- report [scenario mode {:keys [^Histogram latency ^AtomicLong errors backlog]} before after]
+  (let [seconds (/ (- (:time after) (:time before)) 1e9)
+        ms #(/ (.percentile latency %) 1e6)]
+    (println (format "%-12s %-14s %9d %6d %10.1f %8.2f %8.2f %8.2f %8.2f %5d %7d %10.1f%s"
+                     (name scenario) mode
+                     (.getCount latency) (.get errors)
+                     (/ (.getCount latency) seconds)
+                     (ms 50) (ms 99) (ms 99.9) (/ (.getMax latency) 1e6)
+                     (- (:gc-count after) (:gc-count before))
+                     (- (:gc-time after) (:gc-time before))
+                     (/ (- (:allocated after) (:allocated before)) seconds 1024 1024)
+                     (if (pos? (or backlog 0)) (str "  (" backlog " not sent)") "")))))
+
+(defn- measure [scenario mode run]
+  (let [before (jvm-stats)
+        stats (run)
+        after (jvm-stats)]
+    (report scenario mode stats before after)))
+
+(defn run-load-test [options]
+  (let [{:keys [host port ssl-port duration warmup concurrency rates file-size]
+         :as options} (merge default-options options)
+        context (ssl-context options)
+        file (sized-file file-size)
+        fortress (server/run-fortress (test-handler file)
+                                      (merge {:host host :port port}
+                                             (when context
+                                               {:ssl? true :ssl-port ssl-port :ssl-context context})
+                                             (:server options)))
+        group (NioEventLoopGroup.)
+        bootstrap (doto (Bootstrap.)
+                    (.group group)
+                    (.channel NioSocketChannel))]
+    (println "Server options:" (pr-str (:server options)))
+    (println (format "%-12s %-14s %9s %6s %10s %8s %8s %8s %8s %5s %7s %10s"
+                     "scenario" "mode" "requests" "errors" "req/s" "p50 ms" "p99 ms" "p999 ms" "max ms"
+                     "gcs" "gc ms" "alloc MB/s"))
+    (try
+      (doseq [scenario-name (:scenarios options)
+              :let [scenario (scenarios scenario-name)
+                    build-request (request-builder scenario options)]]
+        (if (and (:spdy? scenario) (nil? context))
+          (println (format "%-12s skipped, needs :keystore and :keystore-password" (name scenario-name)))
+          (do
+            (closed-loop bootstrap options scenario build-request concurrency warmup)
+            (measure scenario-name (str "closed x" concurrency)
+                     #(closed-loop bootstrap options scenario build-request concurrency duration))
+            (doseq [rate rates]
+              (measure scenario-name (str "open " rate "/s")
+                       #(open-loop bootstrap options scenario build-request rate duration))))))
+      (finally
+        (.sync (.shutdownGracefully group))
+        (server/stop-fortress fortress)
+        (.delete file)))))
+
+(defn -main
+  "Takes an optional edn map of options, e.g.
+  lein load-test '{:duration 20 :concurrency 64 :server {:zero-copy? false}}'"
+  [& [options]]
+  (run-load-test (if options (edn/read-string options) {}))
+  (shutdown-agents)
+  (System/exit 0))
@@ -0,0 +1,63 @@
+package fortress.ring.bench;
+
+import clojure.lang.IFn;
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+/**
+ * Helpers to drive the adapter from JMH without a running server.
+ */
+public final class Fortress {
+    private Fortress() {
+    }
+
+    /**
+     * Resolves a clojure function, loading its namespace first.
+     */
+    public static IFn fn(String ns, String name) {
+        RT.var("clojure.core", "require").invoke(Symbol.intern(ns));
+        return RT.var(ns, name);
+    }
+
+    /**
+     * Embedded channel with socket addresses, the request functions expect
+     * InetSocketAddress for the local and remote ends.
+     */
+    public static class LoopbackChannel extends EmbeddedChannel {
+        private static final InetSocketAddress LOCAL = new InetSocketAddress("127.0.0.1", 8080);
+        private static final InetSocketAddress REMOTE = new InetSocketAddress("127.0.0.1", 51234);
+
+        public LoopbackChannel(ChannelHandler... handlers) {
+            super(handlers);
+        }
+
+        @Override
+        protected SocketAddress localAddress0() {
+            return LOCAL;
+        }
+
+        @Override
+        protected SocketAddress remoteAddress0() {
+            return REMOTE;
+        }
+    }
+
+    /**
+     * Releases everything written to the channel so far, returns the
+     * number of messages drained.
+     */
+    public static int drainOutbound(EmbeddedChannel channel) {
+        int count = 0;
+        Object msg;
+        while((msg = channel.readOutbound()) != null) {
+            io.netty.util.ReferenceCountUtil.release(msg);
+            count++;
+        }
+        return count;
+    }
+}
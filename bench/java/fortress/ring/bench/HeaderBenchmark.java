@@ -0,0 +1,105 @@
+package fortress.ring.bench;
+
+import clojure.lang.IFn;
+import clojure.lang.PersistentArrayMap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the response headers alone.
+ *
+ * {@code perHeader} is the previous way of setting headers, a set per
+ * entry of the ring map plus a Date formatted for every response,
+ * {@code setHeaders} is fortress.ring.writers/set-headers and
+ * {@code encode} also runs the headers through the http encoder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HeaderBenchmark {
+    private IFn setHeaders;
+    private IFn getCharset;
+    private EmbeddedChannel channel;
+    private PersistentArrayMap headers;
+
+    @Setup
+    public void setup() {
+        setHeaders = Fortress.fn("fortress.ring.writers", "set-headers");
+        getCharset = Fortress.fn("fortress.ring.writers", "get-charset");
+        channel = new EmbeddedChannel(new HttpResponseEncoder());
+        headers = (PersistentArrayMap) PersistentArrayMap.createWithCheck(new Object[] {
+            "Content-Type", "text/html; charset=UTF-8",
+            "Cache-Control", "no-cache",
+            "X-Request-Id", "5f1c7a3e-9b2d-4c8e-a1f0-3d6b9e2c7a10",
+            "Connection", "Keep-Alive"
+        });
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finish();
+    }
+
+    private static DefaultFullHttpResponse response() {
+        return new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, Unpooled.EMPTY_BUFFER);
+    }
+
+    @Benchmark
+    public Object perHeader() {
+        DefaultFullHttpResponse response = response();
+        HttpHeaders.setDate(response, new Date());
+        for(Object entry : headers) {
+            Map.Entry<?, ?> header = (Map.Entry<?, ?>) entry;
+            response.headers().set((String) header.getKey(), header.getValue());
+        }
+        return response;
+    }
+
+    @Benchmark
+    public Object setHeaders() {
+        DefaultFullHttpResponse response = response();
+        setHeaders.invoke(response, headers);
+        return response;
+    }
+
+    @Benchmark
+    public Object charset() {
+        return getCharset.invoke(headers);
+    }
+
+    @Benchmark
+    public int encode() {
+        DefaultFullHttpResponse response = response();
+        setHeaders.invoke(response, headers);
+        HttpHeaders.setContentLength(response, 0);
+        channel.writeOutbound(response);
+        int size = 0;
+        Object msg;
+        while((msg = channel.readOutbound()) != null) {
+            if(msg instanceof ByteBuf) {
+                size += ((ByteBuf) msg).readableBytes();
+            }
+            io.netty.util.ReferenceCountUtil.release(msg);
+        }
+        return size;
+    }
+}
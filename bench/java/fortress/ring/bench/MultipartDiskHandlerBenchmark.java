@@ -0,0 +1,72 @@
+package fortress.ring.bench;
+
+import fortress.ring.http.DiskHttpWrapper;
+import fortress.ring.http.MultipartDiskHandler;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multipart upload spilled to disk, fed in 8k chunks like HttpServerCodec
+ * produces them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MultipartDiskHandlerBenchmark {
+    private static final int CHUNK = 8192;
+
+    @Param({"65536", "1048576"})
+    public int uploadSize;
+
+    private File tempDirectory;
+    private EmbeddedChannel channel;
+    private byte[] chunk;
+
+    @Setup
+    public void setup() {
+        tempDirectory = new File(System.getProperty("java.io.tmpdir"));
+        channel = new EmbeddedChannel(new MultipartDiskHandler(tempDirectory, 4096, null));
+        chunk = new byte[CHUNK];
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finish();
+    }
+
+    @Benchmark
+    public long upload() {
+        DefaultHttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/upload");
+        request.headers().set(HttpHeaders.Names.CONTENT_TYPE, "multipart/form-data; boundary=----fortress");
+        request.headers().set(HttpHeaders.Names.CONTENT_LENGTH, uploadSize);
+        channel.writeInbound(request);
+        for(int written = CHUNK; written < uploadSize; written += CHUNK) {
+            channel.writeInbound(new DefaultHttpContent(Unpooled.wrappedBuffer(chunk)));
+        }
+        channel.writeInbound(new DefaultLastHttpContent(Unpooled.wrappedBuffer(chunk)));
+
+        DiskHttpWrapper wrapper = (DiskHttpWrapper) channel.readInbound();
+        long length = wrapper.getBody().length();
+        wrapper.getBody().delete();
+        return length;
+    }
+}
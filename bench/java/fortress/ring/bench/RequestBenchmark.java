@@ -0,0 +1,98 @@
+package fortress.ring.bench;
+
+import clojure.lang.IFn;
+import fortress.ring.http.FormDecoder;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ring request creation from an aggregated netty request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RequestBenchmark {
+    private IFn createSimpleRingRequest;
+    private IFn headers;
+    private IFn url;
+    private IFn serverName;
+
+    private Fortress.LoopbackChannel channel;
+    private ChannelHandlerContext ctx;
+    private DefaultFullHttpRequest request;
+    private FormDecoder decoder;
+    private String uri;
+
+    @Setup
+    public void setup() {
+        createSimpleRingRequest = Fortress.fn("fortress.ring.request", "create-simple-ring-request");
+        headers = Fortress.fn("fortress.ring.request", "headers");
+        url = Fortress.fn("fortress.ring.request", "url");
+        serverName = Fortress.fn("fortress.ring.request", "server-name");
+        decoder = new FormDecoder(1000, 1048576);
+
+        channel = new Fortress.LoopbackChannel(new ChannelInboundHandlerAdapter());
+        ctx = channel.pipeline().firstContext();
+
+        uri = "/api/v1/users/42/orders?page=3&sort=desc&fields=id,total";
+        request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, uri,
+                                             Unpooled.copiedBuffer(new byte[256]));
+        HttpHeaders h = request.headers();
+        h.set(HttpHeaders.Names.HOST, "localhost:8080");
+        h.set(HttpHeaders.Names.USER_AGENT, "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36");
+        h.set(HttpHeaders.Names.ACCEPT, "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
+        h.set(HttpHeaders.Names.ACCEPT_ENCODING, "gzip, deflate");
+        h.set(HttpHeaders.Names.ACCEPT_LANGUAGE, "en-US,en;q=0.5");
+        h.set(HttpHeaders.Names.CONTENT_TYPE, "application/json; charset=UTF-8");
+        h.set(HttpHeaders.Names.CONTENT_LENGTH, 256);
+        h.set(HttpHeaders.Names.COOKIE, "session=0123456789abcdef; theme=dark");
+        h.set(HttpHeaders.Names.CONNECTION, "keep-alive");
+    }
+
+    @TearDown
+    public void tearDown() {
+        request.release();
+        channel.finish();
+    }
+
+    @Benchmark
+    public Object createSimpleRingRequest() {
+        return createSimpleRingRequest.invoke(ctx, request, null);
+    }
+
+    @Benchmark
+    public Object createSimpleRingRequestLazyParams() {
+        return createSimpleRingRequest.invoke(ctx, request, decoder);
+    }
+
+    @Benchmark
+    public Object headers() {
+        return headers.invoke(request);
+    }
+
+    @Benchmark
+    public Object url() {
+        return url.invoke(uri);
+    }
+
+    @Benchmark
+    public Object serverName() {
+        return serverName.invoke(ctx, request);
+    }
+}
@@ -0,0 +1,106 @@
+package fortress.ring.bench;
+
+import clojure.lang.IFn;
+import clojure.lang.PersistentArrayMap;
+import clojure.lang.PersistentList;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.stream.ChunkedWriteHandler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every ResponseWriter extension writing into an embedded channel.
+ *
+ * Responses are written as SPDY responses so the channel is not closed
+ * after stream and file bodies and can be reused between invocations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ResponseWriterBenchmark {
+    private static final Boolean KEEP_OPEN = Boolean.TRUE;
+
+    private IFn write;
+    private Fortress.LoopbackChannel channel;
+    private Object headers;
+    private String text;
+    private Object seq;
+    private byte[] bytes;
+    private File file;
+
+    @Setup
+    public void setup() throws Exception {
+        write = Fortress.fn("fortress.ring.writers", "write");
+        channel = new Fortress.LoopbackChannel(new ChunkedWriteHandler());
+        headers = PersistentArrayMap.createWithCheck(new Object[] {
+            "Content-Type", "text/html; charset=UTF-8",
+            "Cache-Control", "no-cache",
+            "X-Request-Id", "5f1c7a3e-9b2d-4c8e-a1f0-3d6b9e2c7a10"
+        });
+        char[] chars = new char[2048];
+        Arrays.fill(chars, 'a');
+        text = new String(chars);
+        seq = PersistentList.create(Arrays.asList("<html>", "<body>", text, "</body>", "</html>"));
+        bytes = text.getBytes("UTF-8");
+        file = File.createTempFile("fortress-bench", ".html");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for(int i = 0; i < 32; i++) {
+                out.write(bytes);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finish();
+        file.delete();
+    }
+
+    private int write(Object body) {
+        write.invoke(body, headers, HttpVersion.HTTP_1_1, HttpResponseStatus.OK, KEEP_OPEN, channel);
+        return Fortress.drainOutbound(channel);
+    }
+
+    @Benchmark
+    public int string() {
+        return write(text);
+    }
+
+    @Benchmark
+    public int seq() {
+        return write(seq);
+    }
+
+    @Benchmark
+    public int inputStream() {
+        return write(new ByteArrayInputStream(bytes));
+    }
+
+    @Benchmark
+    public int file() {
+        return write(file);
+    }
+
+    @Benchmark
+    public int empty() {
+        return write(null);
+    }
+}
@@ -0,0 +1,76 @@
+package fortress.ring.bench;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.spdy.DefaultSpdyDataFrame;
+import io.netty.handler.codec.spdy.DefaultSpdySynStreamFrame;
+import io.netty.handler.codec.spdy.InstrumentedSpdyHttpDecoder;
+import io.netty.handler.codec.spdy.SpdyHeaders;
+import io.netty.handler.codec.spdy.SpdySynStreamFrame;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SPDY/3 SYN_STREAM followed by a single data frame decoded into a
+ * full http request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SpdyHttpDecoderBenchmark {
+    private static final int VERSION = 3;
+
+    private EmbeddedChannel channel;
+    private byte[] body;
+    private int streamId;
+
+    @Setup
+    public void setup() {
+        File tempDirectory = new File(System.getProperty("java.io.tmpdir"));
+        channel = new EmbeddedChannel(new InstrumentedSpdyHttpDecoder(VERSION, 1024 * 1024, tempDirectory, null));
+        body = new byte[1024];
+        streamId = 1;
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finish();
+    }
+
+    @Benchmark
+    public Object decode() {
+        // Client initiated streams use odd ids
+        streamId = streamId > 0x3ffffff0 ? 1 : streamId + 2;
+
+        SpdySynStreamFrame syn = new DefaultSpdySynStreamFrame(streamId, 0, (byte) 0);
+        SpdyHeaders.setMethod(VERSION, syn, HttpMethod.POST);
+        SpdyHeaders.setUrl(VERSION, syn, "/api/v1/users/42/orders?page=3");
+        SpdyHeaders.setVersion(VERSION, syn, HttpVersion.HTTP_1_1);
+        SpdyHeaders.setScheme(VERSION, syn, "https");
+        SpdyHeaders.setHost(syn, "localhost:8443");
+        SpdyHeaders.setHeader(syn, "content-type", "application/json");
+        SpdyHeaders.setHeader(syn, "user-agent", "Mozilla/5.0 (X11; Linux x86_64)");
+        channel.writeInbound(syn);
+
+        DefaultSpdyDataFrame data = new DefaultSpdyDataFrame(streamId, Unpooled.wrappedBuffer(body));
+        data.setLast(true);
+        channel.writeInbound(data);
+
+        FullHttpRequest request = (FullHttpRequest) channel.readInbound();
+        request.release();
+        return request;
+    }
+}
@@ -15,7 +15,13 @@
                                   [org.clojure/tools.nrepl "0.2.3"]
                                   [clojure-complete "0.2.3"]
                                   [ch.qos.logback/logback-core "1.0.13"]
-                                  [ch.qos.logback/logback-classic "1.0.13"]]}}
+                                  [ch.qos.logback/logback-classic "1.0.13"]]}
+             :bench {:java-source-paths ["bench/java"]
+                     :source-paths ["bench/clj"]
+                     :dependencies [[org.openjdk.jmh/jmh-core "1.37"]
+                                    [org.openjdk.jmh/jmh-generator-annprocess "1.37"]]}}
+  :aliases {"bench" ["with-profile" "+bench" "run" "-m" "org.openjdk.jmh.Main" "-prof" "gc"]
+            "load-test" ["with-profile" "+bench" "run" "-m" "fortress.ring.load-test"]}
   :jvm-opts ["-Xbootclasspath/p:lib/npn-boot-1.1.6.v20130911.jar"]
   :aot [fortress.ring.handler
         fortress.ring.spdy])
@@ -2,24 +2,36 @@
   (:require [clojure.tools.logging :as log]
             [fortress.ring.writers :as writers]
             [fortress.ring.request :as request]
-            [fortress.ring.response :as response]) 
+            [fortress.ring.response :as response]
+            [fortress.ring.metrics :as metrics]) 
   (:import [fortress.ring.spdy DefaultServerProvider DefaultSpdyOrHttpChooser]
-           [fortress.ring.http MultipartDiskHandler]
-           [io.netty.channel ChannelHandler$Sharable SimpleChannelInboundHandler]
+           [fortress.ring.http MultipartDiskHandler ConnectionTracker DiskHttpWrapper LoadShedder HttpPipeliningHandler
+                               TrafficShaping TempDirectories DigestPolicy UploadVerificationException
+                               TempSpaceExhaustedException
+                               FormDecoder BadRequestException SslEngineFactory RequestDeadlines
+                               LoadSheddingHandler LoadSheddingHandler$Shed CancelFlag]
+           [fortress.ring.metrics MetricsHandler ServerMetrics]
+           [fortress.ring.log AccessLog]
+           [io.netty.channel ChannelHandler$Sharable ChannelFuture ChannelFutureListener SimpleChannelInboundHandler]
+           [io.netty.util ReferenceCountUtil ReferenceCounted]
            [io.netty.handler.stream ChunkedWriteHandler]
-           [io.netty.handler.codec.http DefaultHttpRequest HttpServerCodec HttpObjectAggregator HttpHeaders]
+           [io.netty.handler.codec TooLongFrameException]
+           [io.netty.handler.codec.http DefaultHttpRequest FullHttpRequest HttpServerCodec HttpObjectAggregator HttpHeaders]
            [io.netty.handler.logging LoggingHandler]
+           [io.netty.handler.timeout IdleStateHandler WriteTimeoutHandler TimeoutException]
            [io.netty.handler.ssl SslHandler]
            [org.eclipse.jetty.npn NextProtoNego]
-           [javax.net.ssl SSLContext]))
+           [javax.net.ssl SSLContext]
+           [java.util.concurrent Callable RejectedExecutionException ScheduledFuture TimeUnit]
+           [java.util.concurrent.atomic AtomicBoolean AtomicReference]))
 
 (def debug-request (atom false))
 
-(defn- add-keep-alive [http-request ring-response]
-  (if (HttpHeaders/isKeepAlive http-request)
-    (do
-      (assoc-in ring-response [:headers "Connection"] "Keep-Alive"))
-    ring-response))
+(defn- add-keep-alive [http-request ring-response close?]
+  (cond
+    close? (assoc-in ring-response [:headers "Connection"] "close")
+    (HttpHeaders/isKeepAlive http-request) (assoc-in ring-response [:headers "Connection"] "Keep-Alive")
+    :else ring-response))
 
 
 (gen-class :name ^{ChannelHandler$Sharable {}}
@@ -27,87 +39,431 @@
            :extends io.netty.channel.SimpleChannelInboundHandler
            :state state
            :init "init"
-           :constructors {[Boolean clojure.lang.IFn clojure.lang.IFn] []}
+           :constructors {[Boolean clojure.lang.IFn clojure.lang.IFn clojure.lang.IPersistentMap] []}
            :prefix "fhandler-")
 
-(defn fhandler-init [zero-copy? handler error-fn]
+(defn fhandler-init [zero-copy? handler error-fn options]
   [[] (atom {:zero-copy? zero-copy?
              :handler handler
-             :error-fn error-fn})])
+             :error-fn error-fn
+             :metrics (:metrics options)
+             :connections (:connections options)
+             :shedder (:shedder options)
+             :access-log (:access-logger options)
+             :server-header (:server-header options)
+             :deadlines (:deadlines options)
+             :digest-policy (:digest-policy options)
+             :handler-timeout (long (:request-timeout (meta handler) 0))
+             :form-decoder (if (:parse-params? options)
+                             (FormDecoder. (int (:max-form-params options 0))
+                                           (int (:max-form-size options 0))))})])
+
+(defn- caused-by
+  "The first throwable in the cause chain that is an instance of one of
+  the classes, if any"
+  [^Throwable cause & classes]
+  (->> (iterate #(.getCause ^Throwable %) cause)
+       (take-while identity)
+       (some (fn [t]
+               (if (some #(instance? % t) classes)
+                 t)))))
+
+(defn- failure-response
+  "Ring response for a request that failed with cause. Connections are
+  closed after bad requests, the rest of them can't be trusted."
+  [cause]
+  (if-let [failure (caused-by cause UploadVerificationException BadRequestException)]
+    {:status 400
+     :headers {"Connection" "close"}
+     :body (.getMessage ^Throwable failure)}
+    (cond
+      (caused-by cause TooLongFrameException)
+      {:status 413
+       :headers {"Connection" "close"}}
+
+      ;; The rest of the upload is dropped, the connection stays usable
+      (caused-by cause TempSpaceExhaustedException)
+      {:status 507
+       :body "Insufficient Storage"}
+
+      :else
+      {:status 500})))
+
+(defn- close-after
+  "after-write for responses that close the connection"
+  [ring-response]
+  (if (= "close" (get-in ring-response [:headers "Connection"]))
+    (fn [^ChannelFuture future]
+      (.addListener future ChannelFutureListener/CLOSE))))
+
+(defn- write-in-order
+  "Calls write right away or, on a pipelined connection, once the
+  responses to the requests before this one have been written"
+  [^HttpPipeliningHandler pipelining sequence ^Callable write]
+  (if pipelining
+    (.respond pipelining sequence write)
+    (.call write)))
+
+(defn- respond
+  "Writes the ring response in turn and records it once written, after-write
+  is called with the write future when given"
+  [this ctx plain-request ^HttpPipeliningHandler pipelining sequence ring-response queued handler-time after-write]
+  (let [{:keys [zero-copy? ^ServerMetrics metrics ^ConnectionTracker connections
+                ^AccessLog access-log server-header]} @(.state this)
+        status (int (:status ring-response 200))]
+    (write-in-order pipelining sequence
+                    (fn []
+                      (let [logged (if access-log
+                                     (.listener access-log plain-request status queued handler-time))
+                            future (binding [writers/*zero-copy* zero-copy?
+                                             writers/*server-header* server-header
+                                             writers/*body-bytes* logged]
+                                     (doto (response/write-ring-response plain-request ctx ring-response)
+                                       (.addListener (.completionListener metrics status handler-time))
+                                       (.addListener (.finishListener connections))))]
+                        (when logged
+                          (.addListener future logged))
+                        (when after-write
+                          (after-write future))
+                        future)))))
+
+(defn- answer
+  "Answers a request without calling the handler, recorded as any other
+  response"
+  [this ctx plain-request pipelining sequence ring-response]
+  (let [{:keys [^ServerMetrics metrics ^ConnectionTracker connections]} @(.state this)
+        channel (.channel ctx)
+        queued (MetricsHandler/requestDispatched channel (System/nanoTime))]
+    (.requestStarted metrics (writers/spdy-request? plain-request) queued)
+    (.requestStarted connections channel)
+    (respond this ctx plain-request pipelining sequence ring-response
+             queued 0 (close-after ring-response))))
+
+(def ^:private service-unavailable
+  {:status 503
+   :headers {"Retry-After" "1"}
+   :body "Service Unavailable"})
+
+(defn- shed-request
+  "Answers 503 without calling the handler"
+  [this ctx plain-request request pipelining sequence]
+  (when (instance? DiskHttpWrapper request)
+    (.delete (.getBody ^DiskHttpWrapper request)))
+  (answer this ctx plain-request pipelining sequence
+          (add-keep-alive plain-request service-unavailable false)))
 
 (defn fhandler-exceptionCaught [this ctx cause]
   (log/debug cause "Error occurred in Http I/O thread")
-  (let [state (.state this)
-        {:keys [error-fn]} @state]
+  (let [{:keys [error-fn]} @(.state this)
+        channel (.channel ctx)
+        pipelining (HttpPipeliningHandler/get channel)]
     (try
-      (do
-        (if error-fn
-          (error-fn ctx cause))  
-        (when (-> ctx (.channel) (.isOpen))
-          (response/write-ring-response nil ctx {:status 500})))
+      (if error-fn
+        (error-fn ctx cause))
+      (when (and (.isOpen channel)
+                 (not (instance? TimeoutException cause)))
+        (if pipelining
+          ;; The request being received, if any, is answered in its turn.
+          ;; Requests already with the handler answer for themselves.
+          (when-let [plain-request (.unclaimedRequest pipelining)]
+            (answer this ctx plain-request pipelining (.nextSequence pipelining)
+                    (failure-response cause)))
+          (let [ring-response (failure-response cause)
+                after-write (close-after ring-response)
+                future (do
+                         (MetricsHandler/requestDispatched channel 0)
+                         (response/write-ring-response nil ctx ring-response))]
+            (when after-write
+              (after-write future)))))
       (catch Exception e
         (log/fatal e "Error when handling exception" cause)))))
 
+(defn- request-failed
+  "Answers a request whose handler threw"
+  [this ctx plain-request pipelining sequence cause queued handler-time]
+  (let [{:keys [^ServerMetrics metrics error-fn]} @(.state this)
+        ring-response (cond-> (failure-response cause)
+                        ;; SPDY streams close on their own
+                        (writers/spdy-request? plain-request) (update-in [:headers] dissoc "Connection"))]
+    (log/debug cause "Error occurred in handler")
+    (.requestFailed metrics)
+    (try
+      (if error-fn
+        (error-fn ctx cause))
+      (catch Exception e
+        (log/error e "Error in error-fn" cause)))
+    (respond this ctx plain-request pipelining sequence ring-response
+             queued handler-time (close-after ring-response))))
+
+(defn- aggregated-digests
+  "Digests of the body of an aggregated request, if it has one, spilled
+  uploads get theirs while they are written. Throws
+  UploadVerificationException when they don't match the digest headers."
+  [^DigestPolicy policy request]
+  (if (and policy
+           (instance? FullHttpRequest request)
+           (.isReadable (.content ^FullHttpRequest request)))
+    (.verify policy ^FullHttpRequest request)))
+
+(defn- digest-mismatch
+  "Answers 400 to an aggregated request whose body does not match its
+  digest headers, as spilled uploads are"
+  [this ctx plain-request pipelining sequence cause]
+  (answer this ctx plain-request pipelining sequence
+          (cond-> (failure-response cause)
+            (writers/spdy-request? plain-request) (update-in [:headers] dissoc "Connection"))))
+
+(defn- handle-request [this ctx request plain-request ^HttpPipeliningHandler pipelining sequence digests]
+  (let [{:keys [handler ^ServerMetrics metrics ^ConnectionTracker connections form-decoder]} @(.state this)
+        channel (.channel ctx)
+        spdy? (writers/spdy-request? plain-request)
+        started (System/nanoTime)
+        queued (MetricsHandler/requestDispatched channel started)]
+    (.requestStarted metrics spdy? queued)
+    (.requestStarted connections channel)
+    (let [ring-response (try
+                          (as-> request r
+                                (request/create-ring-request ctx r form-decoder digests)
+                                (handler r)
+                                (add-keep-alive plain-request r (and (.isDraining connections)
+                                                                     (not spdy?))))
+                          (catch Throwable t
+                            t))]
+      (if (instance? Throwable ring-response)
+        (request-failed this ctx plain-request pipelining sequence ring-response
+                        queued (- (System/nanoTime) started))
+        (respond this ctx plain-request pipelining sequence ring-response
+                 queued (- (System/nanoTime) started) nil)))))
+
+(defn- close-body
+  "Closes or releases the body of a response nobody is going to write"
+  [{:keys [body]}]
+  (try
+    (cond
+      (instance? java.io.Closeable body) (.close ^java.io.Closeable body)
+      (instance? ReferenceCounted body) (ReferenceCountUtil/release body))
+    (catch Exception e
+      (log/debug e "Error closing abandoned response body"))))
+
+(defn- handle-request-with-deadline
+  "Runs the handler on the deadline threads. Whichever comes first, the
+  handler or the deadline, answers the request. On timeout the handler
+  thread is interrupted, :cancel-flag is set and a 504 is written, closing
+  the connection unless it is SPDY.
+
+  The request is retained while the handler may use it and released by
+  whoever claims it: the handler thread, or the deadline if the handler
+  never started. With every thread busy and the queue full it gets a 503,
+  when the event loop is shutting down it is only released."
+  [this ctx request plain-request ^HttpPipeliningHandler pipelining sequence digests timeout]
+  (let [{:keys [handler ^ServerMetrics metrics ^ConnectionTracker connections form-decoder
+                ^RequestDeadlines deadlines]} @(.state this)
+        channel (.channel ctx)
+        event-loop (.eventLoop channel)
+        spdy? (writers/spdy-request? plain-request)
+        started (System/nanoTime)
+        queued (MetricsHandler/requestDispatched channel started)
+        answered (AtomicBoolean.)
+        claimed (AtomicBoolean.)
+        cancel-flag (CancelFlag.)
+        timer (AtomicReference.)
+        ring-request (assoc (request/create-ring-request ctx request form-decoder digests)
+                            :cancel-flag cancel-flag
+                            :deadline (+ (System/currentTimeMillis) timeout))]
+    (.requestStarted metrics spdy? queued)
+    (.requestStarted connections channel)
+    (ReferenceCountUtil/retain request)
+    (if-let [task (try
+                    (.submit deadlines
+                             ^Runnable
+                             (fn []
+                               (when (.compareAndSet claimed false true)
+                                 (let [result (try
+                                                {:response (handler ring-request)}
+                                                (catch Throwable t
+                                                  {:error t}))]
+                                   (if (.compareAndSet answered false true)
+                                     (try
+                                       (.execute event-loop
+                                                 ^Runnable
+                                                 (fn []
+                                                   (when-let [^ScheduledFuture deadline (.get timer)]
+                                                     (.cancel deadline false))
+                                                   (if-let [t (:error result)]
+                                                     (do
+                                                       (ReferenceCountUtil/release request)
+                                                       (request-failed this ctx plain-request pipelining sequence t
+                                                                       queued (- (System/nanoTime) started)))
+                                                     (respond this ctx plain-request pipelining sequence
+                                                              (add-keep-alive plain-request (:response result)
+                                                                              (and (.isDraining connections) (not spdy?)))
+                                                              queued (- (System/nanoTime) started)
+                                                              (fn [^ChannelFuture future]
+                                                                (.addListener future (reify ChannelFutureListener
+                                                                                       (operationComplete [_ _]
+                                                                                         (ReferenceCountUtil/release request)))))))))
+                                       ;; The event loop shut down while the handler ran
+                                       (catch RejectedExecutionException _
+                                         (ReferenceCountUtil/release request)
+                                         (close-body (:response result))))
+                                     (do
+                                       (.finishedLate deadlines)
+                                       (ReferenceCountUtil/release request)
+                                       (close-body (:response result))))))))
+                    (catch RejectedExecutionException _
+                      nil))]
+      (try
+        (.set timer (.schedule event-loop
+                               ^Runnable
+                               (fn []
+                                 (when (.compareAndSet answered false true)
+                                   (.cancel cancel-flag)
+                                   (.cancel task true)
+                                   (.timedOut deadlines)
+                                   (when (.compareAndSet claimed false true)
+                                     (ReferenceCountUtil/release request))
+                                   (when (instance? DiskHttpWrapper request)
+                                     (.delete (.getBody ^DiskHttpWrapper request)))
+                                   (respond this ctx plain-request pipelining sequence
+                                            {:status 504
+                                             :headers (if-not spdy? {"Connection" "close"})
+                                             :body "Gateway Timeout"}
+                                            queued (- (System/nanoTime) started)
+                                            (if-not spdy?
+                                              (fn [^ChannelFuture future]
+                                                (.addListener future ChannelFutureListener/CLOSE))))))
+                               (long timeout)
+                               TimeUnit/MILLISECONDS))
+        ;; The event loop is shutting down, nobody is left to answer
+        (catch RejectedExecutionException _
+          (.cancel task true)
+          (when (.compareAndSet claimed false true)
+            (ReferenceCountUtil/release request)
+            (when (instance? DiskHttpWrapper request)
+              (.delete (.getBody ^DiskHttpWrapper request))))))
+      ;; Every handler thread is busy and the queue is full
+      (do
+        (ReferenceCountUtil/release request)
+        (when (instance? DiskHttpWrapper request)
+          (.delete (.getBody ^DiskHttpWrapper request)))
+        (respond this ctx plain-request pipelining sequence
+                 (add-keep-alive plain-request service-unavailable false)
+                 queued 0 nil)))))
+
 (defn fhandler-channelRead0 [this ctx request]
-  (let [{:keys [zero-copy? handler]} @(.state this)
+  (let [{:keys [^LoadShedder shedder ^RequestDeadlines deadlines handler-timeout digest-policy]} @(.state this)
         plain-request (if (instance? DefaultHttpRequest request)
                         request
-                        (.getRequest request))]
-    (binding [writers/*zero-copy* zero-copy?]
-      (->> request
-           (request/create-ring-request ctx)
-           (handler)
-           (add-keep-alive plain-request)
-           (response/write-ring-response plain-request ctx)))))
+                        (.getRequest request))
+        pipelining (HttpPipeliningHandler/get (.channel ctx))
+        sequence (if pipelining (.nextSequence pipelining) 0)
+        digests (delay (try
+                         (aggregated-digests digest-policy request)
+                         (catch UploadVerificationException e
+                           e)))]
+    (cond
+      (instance? LoadSheddingHandler$Shed request)
+      (shed-request this ctx plain-request request pipelining sequence)
+
+      ;; Plain connections shed on the request head, SPDY streams once
+      ;; the SPDY decoder hands over the whole request
+      (and shedder (writers/spdy-request? plain-request) (.shouldShed shedder))
+      (shed-request this ctx plain-request request pipelining sequence)
+
+      (instance? UploadVerificationException @digests)
+      (digest-mismatch this ctx plain-request pipelining sequence @digests)
+
+      deadlines
+      (let [timeout (.timeoutFor deadlines plain-request handler-timeout)]
+        (if (pos? timeout)
+          (handle-request-with-deadline this ctx request plain-request pipelining sequence @digests timeout)
+          (handle-request this ctx request plain-request pipelining sequence @digests)))
+
+      :else
+      (handle-request this ctx request plain-request pipelining sequence @digests))))
 
 (gen-class :name ^{ChannelHandler$Sharable {}}
            fortress.ring.handler.FortressInitializer
            :extends io.netty.channel.ChannelInitializer
            :state state
            :init "init"
-           :constructors {[javax.net.ssl.SSLContext Long Boolean Boolean clojure.lang.IFn clojure.lang.IFn clojure.lang.IFn java.lang.String] []}
+           :constructors {[javax.net.ssl.SSLContext Long Boolean Boolean clojure.lang.IFn clojure.lang.IFn clojure.lang.IFn java.lang.String clojure.lang.IPersistentMap] []}
            :prefix "finit-")
 
-(defn finit-init [ssl-context max-size zero-copy? ssl? handler error-fn build-listener tmp-dir-path]
+(defn finit-init [ssl-context max-size zero-copy? ssl? handler error-fn build-listener tmp-dir-path options]
   [[] (atom {:max-size max-size
              :zero-copy? zero-copy?
              :ssl? ssl?
              :ssl-context ssl-context
              :error-fn error-fn
              :handler handler
-             :build-listener build-listener
-             :tmp-dir-path tmp-dir-path})])
+             :build-listener (metrics/upload-listener-builder (:metrics options) build-listener)
+             :tmp-dir-path tmp-dir-path
+             :temp-directories (or (:temp-directories options)
+                                   (TempDirectories. (java.io.File. tmp-dir-path)))
+             :options options})])
+
+(defn- add-timeout-handlers [pipeline {:keys [read-timeout write-timeout idle-timeout]
+                                       :or {read-timeout 0 write-timeout 0 idle-timeout 0}}]
+  (when (or (pos? read-timeout) (pos? idle-timeout))
+    (.addLast pipeline "idle" (IdleStateHandler. (long read-timeout)
+                                                 0
+                                                 (long idle-timeout)
+                                                 TimeUnit/MILLISECONDS)))
+  (when (pos? write-timeout)
+    (.addLast pipeline "writeTimeout" (WriteTimeoutHandler. (long write-timeout)
+                                                            TimeUnit/MILLISECONDS))))
 
 (defn finit-initChannel [this ch]
   (let [pipeline (.pipeline ch)
         state (.state this)
         {:keys [max-size handler zero-copy?
                 error-fn ssl? ssl-context
-                build-listener tmp-dir-path]} @state]
+                build-listener tmp-dir-path temp-directories options]} @state
+        secure? (and ssl? (or ssl-context (:ssl-engines options)))]
+
+    (.addLast pipeline "metrics" (MetricsHandler. (:metrics options)))
+    (add-timeout-handlers pipeline options)
+    (.addLast pipeline "connections" (:connections options))
+    (if-let [^TrafficShaping shaping (:traffic-shaping options)]
+      (.addLast pipeline "shaping" (.newHandler shaping)))
 
     (if @debug-request
       (.addLast pipeline "logger" (LoggingHandler.)))
 
-    (when (and ssl? ssl-context)
-      (let [engine (.createSSLEngine ssl-context)]
-        (.setUseClientMode engine false)
-        (NextProtoNego/put engine (DefaultServerProvider.))
-        (.addLast pipeline "ssl" (SslHandler. engine))
+    (when secure?
+      (let [^SslEngineFactory engines (:ssl-engines options)
+            engine (if engines
+                     (.newEngine engines)
+                     (doto (.createSSLEngine ssl-context)
+                       (.setUseClientMode false)))]
+        (when-not (and engines (.isOpenSsl engines))
+          (NextProtoNego/put engine (DefaultServerProvider.)))
+        (.addLast pipeline "ssl" (if engines
+                                   (.newHandler engines engine)
+                                   (SslHandler. engine)))
         (.addLast pipeline "chooser" (DefaultSpdyOrHttpChooser.
                                        (fortress.ring.handler.FortressHttpRequestHandler.
                                          zero-copy?
                                          handler
-                                         error-fn)
+                                         error-fn
+                                         options)
                                        (.intValue max-size)
                                        (.intValue max-size)
                                        tmp-dir-path
-                                       build-listener))))
+                                       build-listener
+                                       options))))
 
-    (when-not (and ssl? ssl-context)
+    (when-not secure?
       (doto
         pipeline
         (.addLast "codec" (HttpServerCodec.))
-        (.addLast "multipart" (MultipartDiskHandler. (java.io.File. tmp-dir-path)
+        (.addLast "requestHeads" MetricsHandler/REQUEST_HEADS)
+        (.addLast "pipelining" (HttpPipeliningHandler. (int (:max-pipelined options 0))))
+        (cond-> (:shedder options)
+          (.addLast "shedding" (LoadSheddingHandler. (:shedder options))))
+        (.addLast "multipart" (MultipartDiskHandler. ^TempDirectories temp-directories
+                                                     (or (:digest-policy options) DigestPolicy/NONE)
                                                      max-size
                                                      (if-not (nil? build-listener)
                                                        (build-listener))))
@@ -116,5 +472,9 @@
         (.addLast "http-handler" (fortress.ring.handler.FortressHttpRequestHandler.
                                    zero-copy?
                                    handler
-                                   error-fn))))))
+                                   error-fn
+                                   options)))
+      (let [^TrafficShaping shaping (:traffic-shaping options)]
+        (if (and shaping (.hasRoutes shaping))
+          (.addAfter pipeline "codec" "routes" (.getRouteClassifier shaping)))))))
 
@@ -0,0 +1,47 @@
+(ns fortress.ring.metrics
+  (:import [fortress.ring.metrics ServerMetrics MetricsReporter JmxMetricsReporter UploadMetricsListener]
+           [java.util Map]))
+
+(def ^:private data-sections
+  "Sections keyed by data (thread names, stack frames, paths, uri
+  prefixes) instead of by metric name"
+  #{"lag-us" "top-stalled-frames" "directories" "routes"})
+
+(defn- clojurize
+  "Turns the snapshot into clojure maps, metric names become keywords
+  while the keys of data sections stay strings"
+  ([value]
+   (clojurize value false))
+  ([value data?]
+   (if (instance? Map value)
+     (into {} (for [[k v] value]
+                [(if data? k (keyword k))
+                 (clojurize v (and (not data?) (contains? data-sections k)))]))
+     value)))
+
+(defn snapshot
+  "Returns the current metrics as a clojure map"
+  [^ServerMetrics metrics]
+  (clojurize (.snapshot metrics)))
+
+(defn upload-listener-builder
+  "Wraps a listener builder so every upload is also recorded in metrics"
+  [^ServerMetrics metrics listener-builder]
+  (fn []
+    (UploadMetricsListener. metrics (if-not (nil? listener-builder)
+                                      (listener-builder)))))
+
+(defn reporters [{:keys [metrics-reporters jmx-metrics? port metrics-interval]}]
+  (if jmx-metrics?
+    (conj (vec metrics-reporters)
+          (JmxMetricsReporter. (str "fortress:type=ServerMetrics,port=" port) (long metrics-interval)))
+    (vec metrics-reporters)))
+
+(defn start-reporters [^ServerMetrics metrics reporters]
+  (doseq [^MetricsReporter reporter reporters]
+    (.start reporter metrics))
+  reporters)
+
+(defn stop-reporters [reporters]
+  (doseq [^MetricsReporter reporter reporters]
+    (.stop reporter)))
@@ -1,7 +1,10 @@
 (ns fortress.ring.request
   (:require [clojure.string :as s])
-  (:import [fortress.ring.http DiskHttpWrapper]
-           [io.netty.buffer ByteBufInputStream]
+  (:import [fortress.ring.http DiskHttpWrapper FormDecoder]
+           [fortress.util LazyMap]
+           [io.netty.buffer ByteBuf ByteBufInputStream]
+           [io.netty.util CharsetUtil]
+           [java.nio.charset Charset]
            [io.netty.channel ChannelHandlerContext]
            [io.netty.handler.codec.http HttpMethod DefaultFullHttpRequest HttpHeaders HttpHeaders$Names]
            [java.io FileInputStream]))
@@ -66,40 +69,88 @@
         vals (map val headers)]
     (zipmap keys vals)))
 
-(defn create-multipart-ring-request [^ChannelHandlerContext context ^DiskHttpWrapper http-request]
-  (let [full-request (bean http-request)
-        http-request (:request full-request)
-        file-body (:body full-request)
-        [uri query] (url (.getUri http-request))]
-    {:body (FileInputStream. file-body)
-     :uri uri
-     :query-string query
-     :request-method (method (.getMethod http-request))
-     :server-name (server-name context http-request)
-     :server-port (.getPort (local-address context))
-     :remote-addr (remote-address context)
-     :scheme (scheme http-request)
-     :content-type (content-type http-request)
-     :content-length (content-length http-request)
-     :character-encoding (character-encoding http-request)
-     :headers (headers http-request)}))
-
-(defn create-simple-ring-request [^ChannelHandlerContext context ^DefaultFullHttpRequest http-request]
-  (let [[uri query] (url (.getUri http-request))]
-    {:body (ByteBufInputStream. (.content http-request))
-     :uri uri
-     :query-string query
-     :request-method (method (.getMethod http-request))
-     :server-name (server-name context http-request)
-     :server-port (.getPort (local-address context))
-     :remote-addr (remote-address context)
-     :scheme (scheme http-request)
-     :content-type (content-type http-request)
-     :content-length (content-length http-request)
-     :character-encoding (character-encoding http-request)
-     :headers (headers http-request)}))
-
-(defn create-ring-request [^ChannelHandlerContext context http-request]
-  (if (instance? DefaultFullHttpRequest http-request)
-    (create-simple-ring-request context http-request)
-    (create-multipart-ring-request context http-request)))
+(defn- request-charset
+  "Charset named in the content type, UTF-8 when there is none or it is
+  unknown"
+  ^Charset [content-type]
+  (or (when-let [[_ charset] (and content-type (re-find #"(?i)charset=\"?([^\s;\"]+)" content-type))]
+        (try
+          (Charset/forName charset)
+          (catch Exception _)))
+      CharsetUtil/UTF_8))
+
+(defn- form-request? [content-type]
+  (and content-type
+       (.startsWith (s/lower-case content-type) "application/x-www-form-urlencoded")))
+
+(defn- lazy-params
+  "Functions computing :query-params, :form-params and :params on first
+  use. The form is decoded from the readable bytes of the content as they
+  are now, so reading :body does not affect it and vice versa. Without
+  content, as for uploads spilled to disk, the form params are empty."
+  [^FormDecoder decoder query content-type ^ByteBuf content]
+  (let [charset (request-charset content-type)
+        query-params (delay (.decode decoder ^String query charset))
+        form-params (delay (if (and content (form-request? content-type) (.isReadable content))
+                             (.decode decoder content (.readerIndex content) (.readableBytes content) charset)
+                             {}))]
+    {:query-params #(deref query-params)
+     :form-params #(deref form-params)
+     :params #(merge @query-params @form-params)}))
+
+(defn create-multipart-ring-request
+  ([context disk-request]
+   (create-multipart-ring-request context disk-request nil))
+  ([^ChannelHandlerContext context ^DiskHttpWrapper disk-request decoder]
+   (let [http-request (.getRequest disk-request)
+         file-body (.getBody disk-request)
+         [uri query] (url (.getUri http-request))
+         request {:body (FileInputStream. file-body)
+                  :upload-digests (into {} (.getDigests disk-request))
+                  :uri uri
+                  :query-string query
+                  :request-method (method (.getMethod http-request))
+                  :server-name (server-name context http-request)
+                  :server-port (.getPort (local-address context))
+                  :remote-addr (remote-address context)
+                  :scheme (scheme http-request)
+                  :content-type (content-type http-request)
+                  :content-length (content-length http-request)
+                  :character-encoding (character-encoding http-request)
+                  :headers (headers http-request)}]
+     (if decoder
+       (LazyMap/create request (lazy-params decoder query (content-type http-request) nil))
+       request))))
+
+(defn create-simple-ring-request
+  ([context http-request decoder]
+   (create-simple-ring-request context http-request decoder nil))
+  ([^ChannelHandlerContext context ^DefaultFullHttpRequest http-request decoder digests]
+   (let [[uri query] (url (.getUri http-request))
+         request {:body (ByteBufInputStream. (.content http-request))
+                  :upload-digests (into {} digests)
+                  :uri uri
+                  :query-string query
+                  :request-method (method (.getMethod http-request))
+                  :server-name (server-name context http-request)
+                  :server-port (.getPort (local-address context))
+                  :remote-addr (remote-address context)
+                  :scheme (scheme http-request)
+                  :content-type (content-type http-request)
+                  :content-length (content-length http-request)
+                  :character-encoding (character-encoding http-request)
+                  :headers (headers http-request)}]
+     (if decoder
+       (LazyMap/create request (lazy-params decoder query (content-type http-request) (.content http-request)))
+       request))))
+
+(defn create-ring-request
+  "Ring request map for the aggregated or spilled request, with lazily
+  parsed params when a FormDecoder is given. Spilled requests carry their
+  digests, those of aggregated ones are given."
+  ([context http-request decoder]
+   (create-ring-request context http-request decoder nil))
+  ([^ChannelHandlerContext context http-request decoder digests]
+   (if (instance? DefaultFullHttpRequest http-request)
+     (create-simple-ring-request context http-request decoder digests)
+     (create-multipart-ring-request context http-request decoder))))
@@ -3,22 +3,66 @@
   (:require [clojure.tools.logging :as log]
             [fortress.ring.handler :as fhandler]
             [fortress.ring.writers :as writers]
+            [fortress.ring.metrics :as metrics]
             [clojure.java.io :as io])
   (:import [io.netty.bootstrap ServerBootstrap]
            [io.netty.channel ChannelOption]
            [io.netty.channel.nio NioEventLoopGroup]
            [io.netty.channel.socket.nio NioServerSocketChannel]
            [fortress.ring.handler FortressInitializer]
+           [fortress.ring.metrics ServerMetrics EventLoopWatchdog TlsMetrics EventLoopThreads]
+           [fortress.ring.http ConnectionTracker LoadShedder TrafficShaping TempDirectories DigestPolicy
+                               SslEngineFactory RequestDeadlines]
+           [fortress.ring.log AccessLog]
+           [java.io Writer]
            [java.net InetSocketAddress]
+           [javax.net.ssl KeyManager]
            [java.util.concurrent ThreadFactory Executors TimeUnit]))
 
 (def default-options {:threads 0
+                      :boss-threads 1
+                      :thread-affinity? false
                       :host "0.0.0.0"
                       :port 3000
                       :ssl? false
                       :zero-copy? true
                       :error-fn (fn [_ _])
-                      :thread-prefix "fortress-http"})
+                      :thread-prefix "fortress-http"
+                      :server-header "Fortress"
+                      :watchdog? false
+                      :watchdog-interval 100
+                      :stall-threshold 200
+                      :drain-timeout 0
+                      :max-connections 0
+                      :max-connections-per-address 0
+                      :read-timeout 0
+                      :write-timeout 0
+                      :idle-timeout 0
+                      :max-in-flight 0
+                      :max-event-loop-lag 0
+                      :access-log-capacity 8192
+                      :max-pipelined 16
+                      :read-limit 0
+                      :write-limit 0
+                      :connection-read-limit 0
+                      :connection-write-limit 0
+                      :route-limits {}
+                      :temp-strategy :least-outstanding
+                      :temp-min-free 0
+                      :upload-digests []
+                      :verify-upload-digests? true
+                      :parse-params? true
+                      :max-form-params 1000
+                      :max-form-size 1048576
+                      :ssl-provider :jdk
+                      :ssl-session-cache-size 20480
+                      :ssl-session-timeout 3600
+                      :ssl-session-tickets? true
+                      :request-timeout 0
+                      :request-timeout-header "X-Request-Timeout"
+                      :request-threads 64
+                      :request-queue 1024
+                      :metrics-interval 1000})
 
 (defn- random-thread-name [prefix]
   (str prefix "-" (random-guid-str)))
@@ -49,6 +93,21 @@
         (catch Exception e
           (.printStackTrace e))))))
 
+(defn temp-paths
+  "The :temp-path option as a seq of paths"
+  [temp-path]
+  (if (coll? temp-path)
+    (map str temp-path)
+    [(str temp-path)]))
+
+(defn temp-directories
+  "Directories uploads are spilled to, chosen per upload"
+  [^ServerMetrics server-metrics temp-path {:keys [temp-strategy temp-min-free]}]
+  (doto (TempDirectories. (map io/file (temp-paths temp-path))
+                          (= :round-robin temp-strategy)
+                          temp-min-free)
+    (->> (.register server-metrics "temp-directories"))))
+
 (defn start-deleting [path]
   (.scheduleAtFixedRate deletion-executor
                         (delete-files path)
@@ -56,18 +115,61 @@
                         5
                         TimeUnit/MINUTES))
 
-(defn secure-channel-clone [bootstrap handler temp-path {:keys [host ssl? ssl-port zero-copy? listener-builder max-size ssl-context error-fn]}]
+(defn ssl-engines
+  "Engine factory for the secure port, its handshakes are reported in the
+  tls metrics"
+  [^ServerMetrics server-metrics {:keys [ssl-context ssl-key-managers ssl-provider ssl-session-cache-size
+                                        ssl-session-timeout ssl-session-tickets?]}]
+  (let [tls-metrics (TlsMetrics.)]
+    (.register server-metrics "tls" tls-metrics)
+    (SslEngineFactory. ssl-context
+                       (if ssl-key-managers (into-array KeyManager ssl-key-managers))
+                       (name ssl-provider)
+                       ssl-session-cache-size
+                       ssl-session-timeout
+                       (boolean ssl-session-tickets?)
+                       tls-metrics)))
+
+(defn event-loop-group
+  "Event loop group whose threads are named after the prefix and role, its
+  utilization is sampled by the group itself every :metrics-interval and
+  goes in the metrics as <role>-loops"
+  [^ServerMetrics server-metrics role threads {:keys [thread-prefix thread-affinity? metrics-interval]}]
+  (let [thread-factory (EventLoopThreads. (str thread-prefix "-" role) (boolean thread-affinity?))
+        group (NioEventLoopGroup. (int threads) thread-factory)]
+    (.register server-metrics (str role "-loops") thread-factory)
+    (.scheduleAtFixedRate group
+                          ^Runnable #(.sample thread-factory)
+                          (long metrics-interval)
+                          (long metrics-interval)
+                          TimeUnit/MILLISECONDS)
+    group))
+
+(defn- server-bootstrap [boss-group worker-group initializer]
+  (doto (ServerBootstrap.)
+    (.group boss-group worker-group)
+    (.channel NioServerSocketChannel)
+    (.childOption ChannelOption/SO_KEEPALIVE true)
+    (.childHandler initializer)))
+
+(defn secure-channel [boss-group worker-group handler temp-path {:keys [host ssl? ssl-port zero-copy? listener-builder max-size ssl-context error-fn]
+                                                                  :as options}]
   (when (and ssl? ssl-port)
-    (let [bootstrap (doto (.clone bootstrap)
-                      (.childHandler (FortressInitializer.
-                                       ssl-context
-                                       max-size
-                                       false
-                                       true
-                                       handler
-                                       error-fn
-                                       listener-builder
-                                       temp-path)))
+    (let [options (if (or ssl-context (:ssl-key-managers options))
+                    (assoc options :ssl-engines (ssl-engines (:metrics options) options))
+                    options)
+          bootstrap (server-bootstrap boss-group
+                                      worker-group
+                                      (FortressInitializer.
+                                        ssl-context
+                                        max-size
+                                        false
+                                        true
+                                        handler
+                                        error-fn
+                                        listener-builder
+                                        temp-path
+                                        options))
           address (InetSocketAddress. host ssl-port)
           future-channel (.bind bootstrap address)]
       (.syncUninterruptibly future-channel)
@@ -75,10 +177,79 @@
       {:future-secure-channel future-channel
        :secure-channel (.channel future-channel)})))
 
-(defn create-channel [handler temp-path {:keys [port threads thread-prefix host zero-copy? error-fn listener-builder max-size]
+(defn start-watchdog
+  "Watches the event loops of the given groups for stalls and
+  reports their lag in the server metrics"
+  [^ServerMetrics server-metrics groups {:keys [watchdog? watchdog-interval stall-threshold max-event-loop-lag]}]
+  (when (or watchdog? (pos? max-event-loop-lag))
+    (let [watchdog (EventLoopWatchdog. groups watchdog-interval stall-threshold)]
+      (.register server-metrics "event-loops" watchdog)
+      (.start watchdog)
+      (log/info "Event loop watchdog started, stall threshold" stall-threshold "ms")
+      watchdog)))
+
+(defn load-shedder [^ServerMetrics server-metrics watchdog {:keys [max-in-flight max-event-loop-lag]}]
+  (when (or (pos? max-in-flight) (pos? max-event-loop-lag))
+    (doto (LoadShedder. server-metrics watchdog max-in-flight max-event-loop-lag)
+      (->> (.register server-metrics "load-shedder")))))
+
+(defn access-log
+  "Starts the access log when :access-log is a path or a Writer"
+  [^ServerMetrics server-metrics {:keys [access-log access-log-capacity]}]
+  (when access-log
+    (let [writer (if (instance? Writer access-log)
+                   access-log
+                   (io/writer access-log :append true))]
+      (doto (AccessLog. writer access-log-capacity)
+        (->> (.register server-metrics "access-log"))))))
+
+(defn traffic-shaping
+  "Read and write limits, nil when none is configured"
+  [^ServerMetrics server-metrics {:keys [read-limit write-limit connection-read-limit connection-write-limit
+                                         route-limits]}]
+  (when (or (some pos? [read-limit write-limit connection-read-limit connection-write-limit])
+            (seq route-limits))
+    (let [shaping (TrafficShaping. read-limit write-limit connection-read-limit connection-write-limit)]
+      (doseq [[prefix {:keys [read-limit write-limit] :or {read-limit 0 write-limit 0}}] route-limits]
+        (.addRoute shaping prefix read-limit write-limit))
+      (.register server-metrics "traffic-shaping" shaping)
+      shaping)))
+
+(defn request-deadlines
+  "Threads running handlers under a deadline, nil when neither the options
+  nor the handler metadata ask for one"
+  [^ServerMetrics server-metrics handler {:keys [request-timeout request-timeout-header request-threads
+                                                request-queue thread-prefix]}]
+  (when (or (pos? request-timeout) (:request-timeout (meta handler)))
+    (doto (RequestDeadlines. request-timeout
+                             request-timeout-header
+                             request-threads
+                             request-queue
+                             (thread-factory (str thread-prefix "-request")))
+      (->> (.register server-metrics "deadlines")))))
+
+(defn- write-limited? [{:keys [write-limit connection-write-limit route-limits]}]
+  (or (pos? write-limit)
+      (pos? connection-write-limit)
+      (some (comp pos? #(:write-limit % 0)) (vals route-limits))))
+
+(defn create-channel [handler temp-path {:keys [port threads boss-threads ssl-threads thread-prefix host zero-copy? error-fn
+                                                listener-builder max-size max-connections max-connections-per-address]
                                          :or {max-size (* 1024 1024)}
                                          :as options}]
   (let [address (InetSocketAddress. host port)
+        zero-copy? (and zero-copy? (not (write-limited? options)))
+        server-metrics (ServerMetrics.)
+        connections (doto (ConnectionTracker. max-connections max-connections-per-address)
+                      (->> (.register server-metrics "connection-limits")))
+        boss-group (event-loop-group server-metrics "boss" boss-threads options)
+        group (event-loop-group server-metrics "worker" threads options)
+        ssl-group (if ssl-threads
+                    (event-loop-group server-metrics "ssl-worker" ssl-threads options))
+        groups (remove nil? [boss-group group ssl-group])
+        watchdog (start-watchdog server-metrics groups options)
+        temp-directories (temp-directories server-metrics temp-path options)
+        temp-path (first (temp-paths temp-path))
         full-options (assoc options
                             :port port
                             :threads threads
@@ -87,60 +258,228 @@
                             :zero-copy? zero-copy?
                             :error-fn error-fn
                             :listener-builder listener-builder
-                            :max-size max-size)
-        group (NioEventLoopGroup. threads
-                                  (thread-factory thread-prefix))
-        bootstrap (doto (ServerBootstrap.)
-                    (.group group)
-                    (.channel NioServerSocketChannel)
-                    (.childOption ChannelOption/SO_KEEPALIVE true)
-                    (.childHandler (FortressInitializer.
-                                     nil
-                                     max-size
-                                     zero-copy?
-                                     false
-                                     handler
-                                     error-fn
-                                     listener-builder
-                                     temp-path)))
+                            :max-size max-size
+                            :metrics server-metrics
+                            :connections connections
+                            :shedder (load-shedder server-metrics watchdog options)
+                            :access-logger (access-log server-metrics options)
+                            :traffic-shaping (traffic-shaping server-metrics options)
+                            :temp-directories temp-directories
+                            :deadlines (request-deadlines server-metrics handler options)
+                            :digest-policy (DigestPolicy. (vec (:upload-digests options))
+                                                          (boolean (:verify-upload-digests? options))))
+        bootstrap (server-bootstrap boss-group
+                                    group
+                                    (FortressInitializer.
+                                      nil
+                                      max-size
+                                      zero-copy?
+                                      false
+                                      handler
+                                      error-fn
+                                      listener-builder
+                                      temp-path
+                                      full-options))
         future-channel (.bind bootstrap address)]
     (.syncUninterruptibly future-channel)
     (log/info "Channel started at port" port)
     (merge {:future-channel future-channel
             :channel (.channel future-channel)
-            :group group}
-           (secure-channel-clone bootstrap handler temp-path full-options))))
+            :group group
+            :groups groups
+            :connections connections
+            :drain-timeout (:drain-timeout options)
+            :drain-progress (fn []
+                              (assoc (into {} (for [[k v] (.progress connections)]
+                                                [(keyword k) v]))
+                                     :active-uploads (.getActiveUploads server-metrics)))
+            :watchdog watchdog
+            :access-log (:access-logger full-options)
+            :deadlines (:deadlines full-options)
+            :server-metrics server-metrics
+            :metrics (fn [] (metrics/snapshot server-metrics))
+            :reporters (metrics/start-reporters server-metrics (metrics/reporters full-options))}
+           (secure-channel boss-group (or ssl-group group) handler temp-path full-options))))
 
 (defn run-fortress
   "Creates a netty handler and starts it, receives a handler
-  and a map of options. These are the supported options:
+  and a map of options, or the options as keyword arguments. These are
+  the supported options:
   :port             - The port to listen on (defaults to 3000)
   :host             - Host to listen to (defaults to 0.0.0.0)
   :ssl-port         - The SSL por to listen on 
   :ssl?             - Allows to handle https (defaults to false)
   :ssl-context      - SSL Context
-  :threads          - Number of threads (defaults to cores * 2)
-  :thread-prefix    - Thread prefix (defaults to fortress-http
-  :temp-path        - Path to store temporary files
+  :ssl-key-managers - Seq of KeyManager, used to build the context of the
+                      openssl provider (and the JDK one without :ssl-context)
+  :ssl-provider     - :openssl to use Conscrypt's statically linked
+                      BoringSSL engine when it is on the classpath, falls
+                      back to the JDK engine. OpenSSL connections don't
+                      negotiate SPDY (defaults to :jdk)
+  :ssl-session-cache-size - TLS sessions kept for resumption, 0 for no
+                      limit (defaults to 20480)
+  :ssl-session-timeout - Seconds a TLS session can be resumed, 0 for no
+                      limit (defaults to 3600)
+  :ssl-session-tickets? - Issue session tickets, only on the openssl
+                      provider, the JDK engine resumes from the session
+                      cache (defaults to true)
+  :threads          - Number of worker threads (defaults to cores * 2)
+  :boss-threads     - Number of threads accepting connections (defaults to 1)
+  :ssl-threads      - Number of worker threads of the secure port, which
+                      then gets its own group (defaults to sharing the
+                      plain workers)
+  :thread-affinity? - Pin each event loop thread to a CPU, needs OpenHFT
+                      Java-Thread-Affinity on the classpath (defaults to
+                      false)
+  :thread-prefix    - Thread prefix, threads are named <prefix>-boss-n,
+                      <prefix>-worker-n and <prefix>-ssl-worker-n
+                      (defaults to fortress-http)
+  :server-header    - Value of the Server header, nil to leave it out
+                      (defaults to Fortress)
+  :temp-path        - Path or seq of paths (one per disk) to store
+                      temporary files
+  :temp-strategy    - How a temp path is chosen for each upload,
+                      :least-outstanding (bytes still to be written) or
+                      :round-robin (defaults to :least-outstanding)
+  :temp-min-free    - Bytes a temp path must keep free once an upload is
+                      written, uploads fail when no path has room
+                      (defaults to 0)
   :listneer-builder - Build a listener for file uploads
-  :debug-requests   - Wether to debug requests (defaults to false)"
+  :debug-requests   - Wether to debug requests (defaults to false)
+  :metrics-reporters - Seq of MetricsReporter started with the server
+  :jmx-metrics?     - Publish metrics as an MBean (defaults to false)
+  :metrics-interval - Milliseconds between event loop utilization samples,
+                      also how long a JMX snapshot is reused (defaults to
+                      1000)
+  :watchdog?        - Detect event loop stalls (defaults to false)
+  :watchdog-interval - Milliseconds between event loop probes (defaults to 100)
+  :stall-threshold  - Milliseconds of lag considered a stall (defaults to 200)
+  :drain-timeout    - Milliseconds stop-fortress waits for requests in
+                      progress to finish (defaults to 0, no draining)
+  :max-connections  - Maximum open connections (defaults to 0, no limit)
+  :max-connections-per-address - Maximum open connections per remote
+                      address (defaults to 0, no limit)
+  :read-timeout     - Milliseconds without reads before an idle connection
+                      is closed (defaults to 0, disabled)
+  :write-timeout    - Milliseconds a write may take before the connection
+                      is closed (defaults to 0, disabled)
+  :idle-timeout     - Milliseconds without reads or writes before an idle
+                      connection is closed (defaults to 0, disabled)
+  :max-in-flight    - Requests in progress above which new requests get a
+                      503 (defaults to 0, no limit)
+  :max-event-loop-lag - Milliseconds of event loop lag above which new
+                      requests get a 503, starts the watchdog (defaults to 0)
+  :max-pipelined    - Pipelined requests waiting for a response above which
+                      a plain connection stops reading (defaults to 16,
+                      0 for no limit)
+  :upload-digests   - MessageDigest algorithms computed over request
+                      bodies, while uploads are written to disk or once
+                      smaller bodies are aggregated, i.e. SHA-256, results
+                      go in :upload-digests of the request (defaults to [])
+  :verify-upload-digests? - Reject with a 400 requests whose Content-MD5 or
+                      Digest header does not match their body (defaults
+                      to true)
+  :parse-params?    - Add :query-params, :form-params and :params to the
+                      request, parsed when their value is first read,
+                      which includes into or pr-str of the whole request
+                      (defaults to true)
+  :max-form-params  - Parameters in a query string or form above which
+                      the request gets a 400 (defaults to 1000)
+  :max-form-size    - Bytes of form data above which the request gets a
+                      400 when its params are read (defaults to 1048576)
+  :request-timeout  - Milliseconds a request may take before it gets a
+                      504, handlers then run on their own threads and get
+                      :deadline and a derefable :cancel-flag in the
+                      request, see cancelled?. A
+                      :request-timeout in the handler metadata takes
+                      precedence (defaults to 0, no deadline)
+  :request-timeout-header - Header a request can use to ask for a shorter
+                      deadline in milliseconds, nil to ignore it
+                      (defaults to X-Request-Timeout)
+  :request-threads  - Threads running handlers under a deadline
+                      (defaults to 64)
+  :request-queue    - Requests that may wait for one of those threads,
+                      more get a 503 (defaults to 1024)
+  :read-limit       - Bytes per second read by the whole server
+                      (defaults to 0, no limit)
+  :write-limit      - Bytes per second written by the whole server
+                      (defaults to 0, no limit)
+  :connection-read-limit - Bytes per second read per connection
+                      (defaults to 0, no limit)
+  :connection-write-limit - Bytes per second written per connection
+                      (defaults to 0, no limit)
+  :route-limits     - Map of uri prefix to {:read-limit :write-limit}
+                      shared by the requests under that prefix, not
+                      applied to SPDY connections (defaults to {})
+                      Write limits turn :zero-copy? off, files are sent
+                      in chunks so they can be paced.
+  :access-log       - File path or Writer to write the access log to
+                      (defaults to nil, disabled)
+  :access-log-capacity - Entries waiting to be written before new ones are
+                      dropped (defaults to 8192)
+
+  The returned map has a :metrics function returning a snapshot of
+  request, byte, upload and latency counters."
   ([handler]
    (run-fortress handler {}))
+  ([handler key value & more]
+   (run-fortress handler (apply hash-map key value more)))
   ([handler {:keys [debug-requests temp-path]
              :or {temp-path (System/getProperty "java.io.tmpdir")}
              :as options}]
-   (start-deleting temp-path)
+   (doseq [path (temp-paths temp-path)]
+     (start-deleting path))
    (let [options (merge default-options options)]
      (reset! fhandler/debug-request debug-requests)
      (if debug-requests
        (log/info "Setting up requests debug"))
      (create-channel handler temp-path options))))
 
-(defn stop-fortress [{:keys [group channel secure-channel]}]
-  (.close channel)
-  (if secure-channel
-    (.close secure-channel))
-  (-> group
-      (.shutdownGracefully)
-      (.sync))
-  (log/info "Fortress stopped"))
+(defn cancelled?
+  "True once the deadline of a request running under :request-timeout
+  expired and it got its 504, the handler can give up"
+  [request]
+  (boolean (some-> (:cancel-flag request) deref)))
+
+(defn drain
+  "Closes idle connections, asks busy ones to close once their response
+  is written (Connection: close on http, GOAWAY on SPDY) and waits up to
+  timeout milliseconds for them to go away. Whatever is left is closed."
+  [{:keys [^ConnectionTracker connections]} timeout]
+  (log/info "Draining" (.getOpenConnections connections) "connections")
+  (.drain connections)
+  (let [deadline (+ (System/currentTimeMillis) timeout)]
+    (while (and (pos? (.getOpenConnections connections))
+                (< (System/currentTimeMillis) deadline))
+      (Thread/sleep 50)))
+  (when (pos? (.getOpenConnections connections))
+    (log/warn "Drain timed out, closing" (.getOpenConnections connections) "connections"))
+  (.awaitUninterruptibly (.closeAll connections)))
+
+(defn stop-fortress
+  "Stops the server, options:
+  :drain-timeout - Milliseconds to wait for requests in progress
+                   (defaults to the :drain-timeout given to run-fortress)"
+  ([server]
+   (stop-fortress server {}))
+  ([{:keys [group groups channel secure-channel reporters ^EventLoopWatchdog watchdog ^AccessLog access-log
+            ^RequestDeadlines deadlines]
+      :as server} options]
+   (let [drain-timeout (:drain-timeout options (:drain-timeout server))]
+     (.close channel)
+     (if secure-channel
+       (.close secure-channel))
+     (when (and drain-timeout (pos? drain-timeout))
+       (drain server drain-timeout))
+     (when watchdog
+       (.stop watchdog))
+     (doseq [group (or groups [group])]
+       (.shutdownGracefully group))
+     (doseq [group (or groups [group])]
+       (.sync (.terminationFuture group)))
+     (when deadlines
+       (.shutdown deadlines))
+     (when access-log
+       (.stop access-log))
+     (metrics/stop-reporters reporters)
+     (log/info "Fortress stopped"))))
@@ -1,7 +1,7 @@
 (ns fortress.ring.spdy
   (:import [fortress.util NettyUtil]
            [fortress.ring.spdy SpdyChunkedWriteHandler SpdyResponseStreamIdHandler HttpsSchemeAdder]
-           [fortress.ring.http MultipartDiskHandler]
+           [fortress.ring.http MultipartDiskHandler TrafficShaping TempDirectories DigestPolicy]
            [io.netty.handler.stream ChunkedWriteHandler]
            [io.netty.handler.codec.spdy InstrumentedSpdyHttpDecoder]
            [org.eclipse.jetty.npn NextProtoNego]))
@@ -13,24 +13,29 @@
            :state state
            :exposes-methods {addSpdyHandlers parentAddSpdyHandlers
                              addHttpHandlers parentAddHttpHandlers}
-           :constructors {[io.netty.channel.ChannelInboundHandler Integer Integer java.lang.String clojure.lang.IFn] [int int]})
+           :constructors {[io.netty.channel.ChannelInboundHandler Integer Integer java.lang.String clojure.lang.IFn clojure.lang.IPersistentMap] [int int]})
 
-(defn ch-init [handler max-spdy-content-length max-http-content-length temp-dir-path listener-builder]
+(defn ch-init [handler max-spdy-content-length max-http-content-length temp-dir-path listener-builder options]
   [[max-spdy-content-length max-http-content-length] {:handler handler
                                                       :max-http-content-length max-http-content-length
                                                       :max-spdy-content-length max-spdy-content-length
                                                       :temp-dir-path temp-dir-path
-                                                      :listener-builder listener-builder}])
+                                                      :temp-directories (or (:temp-directories options)
+                                                                            (TempDirectories. (java.io.File. temp-dir-path)))
+                                                      :digest-policy (or (:digest-policy options) DigestPolicy/NONE)
+                                                      :listener-builder listener-builder
+                                                      :options options}])
 
 (defn ch-addSpdyHandlers [this ctx version]
   (let [state (.state this)
-        {:keys [max-spdy-content-length temp-dir-path listener-builder]} state
+        {:keys [max-spdy-content-length temp-directories digest-policy listener-builder]} state
         pipeline (NettyUtil/pipeline ctx)]
     (.parentAddSpdyHandlers this ctx version)
     (.addBefore pipeline "spdyHttpDecoder" "instrumentedSpdyHttpDecoder" (InstrumentedSpdyHttpDecoder.
                                                                            version
                                                                            max-spdy-content-length
-                                                                           (java.io.File. temp-dir-path)
+                                                                           ^TempDirectories temp-directories
+                                                                           ^DigestPolicy digest-policy
                                                                            listener-builder))
     (.remove pipeline "spdyHttpDecoder")
     (.addBefore pipeline "spdyStreamIdHandler" "fortressSpdyStreamIdHandler" (SpdyResponseStreamIdHandler.))
@@ -39,19 +44,23 @@
 
 (defn ch-addHttpHandlers [this ctx]
   (let [state (.state this)
-        {:keys [max-http-content-length temp-dir-path listener-builder]} state
+        {:keys [max-http-content-length temp-directories digest-policy listener-builder options]} state
+        ^TrafficShaping shaping (:traffic-shaping options)
         pipeline (NettyUtil/pipeline ctx)]
     (.parentAddHttpHandlers this ctx)
     (.addBefore pipeline "httpRquestHandler" "chunkedWriter" (ChunkedWriteHandler.))  
-    (.addAfter pipeline "httpRquestDecoder" "multipart" (MultipartDiskHandler. (java.io.File. temp-dir-path)
+    (.addAfter pipeline "httpRquestDecoder" "multipart" (MultipartDiskHandler. ^TempDirectories temp-directories
+                                                                            ^DigestPolicy digest-policy
                                                                             max-http-content-length
                                                                             (if-not (nil? listener-builder)
                                                                               (listener-builder))))
-    (.addAfter pipeline "multipart" "schemer" (HttpsSchemeAdder.))))
+    (.addAfter pipeline "multipart" "schemer" (HttpsSchemeAdder.))
+    (if (and shaping (.hasRoutes shaping))
+      (.addAfter pipeline "httpRquestDecoder" "routes" (.getRouteClassifier shaping)))))
 
 (defn ch-getProtocol [this engine]
   (let [provider (NextProtoNego/get engine)
-        protocol (.getSelectedProtocol provider)]
+        protocol (if provider (.getSelectedProtocol provider))]
     (case protocol
       "spdy/2" io.netty.handler.codec.spdy.SpdyOrHttpChooser$SelectedProtocol/SPDY_2
       "spdy/3" io.netty.handler.codec.spdy.SpdyOrHttpChooser$SelectedProtocol/SPDY_3
@@ -3,14 +3,24 @@
             [clojure.java.io :as io])
   (:import [io.netty.channel Channel ChannelFutureListener ChannelFuture DefaultFileRegion]
            [io.netty.handler.codec.http HttpResponse DefaultHttpResponse DefaultFullHttpResponse HttpHeaders HttpHeaders$Names]
+           [fortress.ring.http DateHeader]
+           [fortress.ring.log AccessLog$Response]
            [io.netty.handler.stream ChunkedStream ChunkedFile]
-           [io.netty.buffer Unpooled]
+           [io.netty.buffer ByteBuf Unpooled]
            [java.io InputStream File RandomAccessFile]
            [java.net URLConnection]
+           [java.nio ByteBuffer]
            [java.nio.charset Charset]
            [clojure.lang ISeq]))
 
 (def ^:dynamic *zero-copy* false)
+(def ^:dynamic *server-header* nil)
+
+(def ^:dynamic *body-bytes*
+  "AccessLog$Response the bytes of the body being written are added to,
+  nil when there is no access log"
+  nil)
+
 (def default-charset (Charset/forName "UTF-8"))
 
 (def charset-pattern
@@ -21,14 +31,28 @@
 (defn spdy-request? [request]
   (not (nil? (HttpHeaders/getHeader request "X-SPDY-Stream-ID"))))
 
+(defn- content-type
+  "Value of the content-type header in any case, in a single pass"
+  [headers]
+  (reduce-kv (fn [found ^String key value]
+               (or found
+                   (if (.equalsIgnoreCase "content-type" key)
+                     value)))
+             nil
+             headers))
+
 (defn ^Charset get-charset
   "Extracts the charset from the content-type header, if present.
   Returns nil if the charset cannot be discovered."
   [headers]
-  (if-let [content-type (find headers #(= "content-type" (.toLowerCase %)))]
+  (if-let [content-type (content-type headers)]
     (if-let [[_ charset] (re-find charset-pattern content-type)]
       (Charset/forName charset))))
 
+(defn- count-bytes [n]
+  (if *body-bytes*
+    (.addBytes ^AccessLog$Response *body-bytes* (long n))))
+
 (defn- add-close-listener [^ChannelFuture future spdy? ^HttpResponse response]
   (if true
     (.addListener future ChannelFutureListener/CLOSE_ON_FAILURE)
@@ -45,27 +69,64 @@
       (.addListener future ChannelFutureListener/CLOSE))))
 
 (defn- write-response [^HttpResponse response spdy? ^Channel channel]
-  (-> (.write channel response)
-      (add-close-listener spdy? response))
-  (.flush channel))
-
-(defn set-headers [^DefaultHttpResponse response headers]
-  (doseq [[key values] headers]
-    (.set (.headers response) key values)))
+  (let [future (.write channel response)]
+    (add-close-listener future spdy? response)
+    (.flush channel)
+    future))
+
+(defn set-headers
+  "Sets the Date and Server headers followed by the ring headers, which
+  override them, iterating the ring headers once without reflection"
+  [^HttpResponse response headers]
+  (let [http-headers (.headers response)]
+    (.set http-headers HttpHeaders$Names/DATE (DateHeader/now))
+    (if *server-header*
+      (.set http-headers HttpHeaders$Names/SERVER ^Object *server-header*))
+    (reduce-kv (fn [_ ^String key values]
+                 (if (instance? Iterable values)
+                   (.set http-headers key ^Iterable values)
+                   (.set http-headers key ^Object values)))
+               nil
+               headers)))
 
 (defprotocol ResponseWriter
-  "Provides the best way to write a response for the give ring response body"
+  "Provides the best way to write a response for the give ring response body,
+  returns the future of the last write"
   (write [body headers version status spdy? ^Channel channel]))
 
+(defn- write-buffer
+  "Writes a full response whose content is the buffer, the response takes
+  over the reference to the buffer and releases it once written"
+  [^ByteBuf buffer headers version status spdy? ^Channel channel]
+  (let [response (DefaultFullHttpResponse. version status buffer)]
+    (count-bytes (.readableBytes buffer))
+    (set-headers response headers)
+    (HttpHeaders/setContentLength response (.readableBytes buffer))
+    (write-response response spdy? channel)))
+
 (extend-type String
   ResponseWriter
   (write [body headers version status spdy? ^Channel channel]
-    (let [charset (or (get-charset headers) default-charset)
-          buffer (Unpooled/copiedBuffer body charset)
-          response (DefaultFullHttpResponse. version status buffer)]
-      (set-headers response headers)
-      (HttpHeaders/setContentLength response (.readableBytes buffer))
-      (write-response response spdy? channel))))
+    (let [charset (or (get-charset headers) default-charset)]
+      (write-buffer (Unpooled/copiedBuffer body charset) headers version status spdy? channel))))
+
+(extend (Class/forName "[B")
+  ResponseWriter
+  {:write (fn [^bytes body headers version status spdy? ^Channel channel]
+            (write-buffer (Unpooled/wrappedBuffer body) headers version status spdy? channel))})
+
+;; Wraps the remaining bytes without copying them or moving the position,
+;; a MappedByteBuffer is sent straight from the mapped file
+(extend-type ByteBuffer
+  ResponseWriter
+  (write [body headers version status spdy? ^Channel channel]
+    (write-buffer (Unpooled/wrappedBuffer body) headers version status spdy? channel)))
+
+;; The handler hands its reference over, the buffer is released once written
+(extend-type ByteBuf
+  ResponseWriter
+  (write [body headers version status spdy? ^Channel channel]
+    (write-buffer body headers version status spdy? channel)))
 
 (extend-type ISeq
   ResponseWriter
@@ -75,10 +136,17 @@
 (extend-type InputStream
   ResponseWriter
   (write [body headers version status spdy? ^Channel channel]
-    (let [response (DefaultHttpResponse. version status)]
+    (let [response (DefaultHttpResponse. version status)
+          chunked (ChunkedStream. body)
+          body-bytes *body-bytes*]
       (set-headers response headers)
       (.write channel response)
-      (-> (.writeAndFlush channel (ChunkedStream. body))
+      (-> (.writeAndFlush channel chunked)
+          ;; The length is only known once the stream has been sent
+          (cond-> body-bytes
+            (.addListener (reify ChannelFutureListener
+                            (operationComplete [_ _]
+                              (.addBytes ^AccessLog$Response body-bytes (.transferredBytes chunked))))))
           (add-close-stream-listener spdy? body)))))
 
 (defn file-body [file]
@@ -92,6 +160,7 @@
   (write [body headers version status spdy? ^Channel channel]
     (let [response (DefaultHttpResponse. version status)
           response-body (file-body body)]
+      (count-bytes (.length body))
       (set-headers response (merge headers {"Zero-Copy" *zero-copy*}))
       (HttpHeaders/setContentLength response (.length body))
       (.write channel response)
@@ -104,6 +173,7 @@
   ResponseWriter
   (write [body headers version status spdy? ^Channel channel]
     (let [response (DefaultFullHttpResponse. version status Unpooled/EMPTY_BUFFER)]
+      (set-headers response headers)
       (HttpHeaders/setContentLength response 0)
       (write-response response spdy? channel))))
 
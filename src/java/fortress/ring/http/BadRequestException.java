@@ -0,0 +1,12 @@
+package fortress.ring.http;
+
+/**
+ * The request cannot be handled as sent, it is answered with a 400.
+ */
+public class BadRequestException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public BadRequestException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,25 @@
+package fortress.ring.http;
+
+import clojure.lang.IDeref;
+
+/**
+ * The :cancel-flag of a request running under a deadline, derefs to true
+ * once the deadline expired and the request was answered without its
+ * handler.
+ */
+public final class CancelFlag implements IDeref {
+    private volatile boolean cancelled;
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public Object deref() {
+        return cancelled;
+    }
+}
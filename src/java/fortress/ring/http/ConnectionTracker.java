@@ -0,0 +1,271 @@
+package fortress.ring.http;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.ChannelGroupFuture;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+import fortress.ring.metrics.MetricsHandler;
+import fortress.ring.metrics.MetricsSource;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of every open connection and of the requests in progress on
+ * each of them, so the server can be drained before shutting down.
+ *
+ * While draining, idle http connections are closed, busy ones are closed
+ * as soon as their last response is written and SPDY sessions are closed
+ * with a GOAWAY, which lets the active streams finish.
+ *
+ * It also enforces the global and per remote address connection limits,
+ * and closes connections reported idle by an IdleStateHandler placed
+ * before it, unless a request is in progress on them.
+ */
+@Sharable
+public class ConnectionTracker extends ChannelInboundHandlerAdapter implements MetricsSource {
+    private static final AttributeKey<AtomicInteger> IN_FLIGHT = new AttributeKey<AtomicInteger>("fortress.inFlight");
+    private static final AttributeKey<InetAddress> COUNTED_ADDRESS = new AttributeKey<InetAddress>("fortress.countedAddress");
+    private static final AttributeKey<Boolean> COUNTED = new AttributeKey<Boolean>("fortress.counted");
+    private static final String SPDY_SESSION_HANDLER = "spdySessionHandler";
+
+    private final ChannelFutureListener finishListener = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            requestFinished(future.channel());
+        }
+    };
+    private final ChannelGroup channels = new DefaultChannelGroup("fortress-connections", GlobalEventExecutor.INSTANCE);
+    private final ConcurrentHashMap<InetAddress, AtomicInteger> perAddress = new ConcurrentHashMap<InetAddress, AtomicInteger>();
+    private final AtomicInteger counted = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong idleClosed = new AtomicLong();
+    private final int maxConnections;
+    private final int maxConnectionsPerAddress;
+    private volatile boolean draining;
+    private volatile long drainStarted;
+
+    public ConnectionTracker() {
+        this(0, 0);
+    }
+
+    /**
+     * @param maxConnections maximum open connections, 0 for no limit
+     * @param maxConnectionsPerAddress maximum open connections from a single
+     *        remote address, 0 for no limit
+     */
+    public ConnectionTracker(int maxConnections, int maxConnectionsPerAddress) {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        Channel channel = ctx.channel();
+        channel.attr(IN_FLIGHT).set(new AtomicInteger());
+        if(draining) {
+            channel.close();
+            return;
+        }
+        if(maxConnections > 0 && !acquireConnection(channel)) {
+            reject(channel);
+            return;
+        }
+        if(maxConnectionsPerAddress > 0 && !acquireAddress(channel)) {
+            releaseConnection(channel);
+            reject(channel);
+            return;
+        }
+        channels.add(channel);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        releaseConnection(ctx.channel());
+        InetAddress address = ctx.channel().attr(COUNTED_ADDRESS).getAndRemove();
+        if(address != null) {
+            AtomicInteger count = perAddress.get(address);
+            if(count != null && count.decrementAndGet() <= 0) {
+                perAddress.remove(address, count);
+            }
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if(evt instanceof IdleStateEvent) {
+            AtomicInteger count = ctx.channel().attr(IN_FLIGHT).get();
+            if(count == null || count.get() == 0) {
+                idleClosed.incrementAndGet();
+                ctx.close();
+            }
+            return;
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    /**
+     * Takes one of the maxConnections slots, the check and the increment
+     * are a single CAS so concurrent accepts can't go past the limit.
+     */
+    private boolean acquireConnection(Channel channel) {
+        for(;;) {
+            int current = counted.get();
+            if(current >= maxConnections) {
+                return false;
+            }
+            if(counted.compareAndSet(current, current + 1)) {
+                channel.attr(COUNTED).set(Boolean.TRUE);
+                return true;
+            }
+        }
+    }
+
+    private void releaseConnection(Channel channel) {
+        if(channel.attr(COUNTED).getAndRemove() != null) {
+            counted.decrementAndGet();
+        }
+    }
+
+    private boolean acquireAddress(Channel channel) {
+        if(!(channel.remoteAddress() instanceof InetSocketAddress)) {
+            return true;
+        }
+        InetAddress address = ((InetSocketAddress) channel.remoteAddress()).getAddress();
+        for(;;) {
+            AtomicInteger count = perAddress.get(address);
+            if(count == null) {
+                count = new AtomicInteger();
+                AtomicInteger existing = perAddress.putIfAbsent(address, count);
+                if(existing != null) {
+                    count = existing;
+                }
+            }
+            int current = count.get();
+            if(current >= maxConnectionsPerAddress) {
+                return false;
+            }
+            if(count.compareAndSet(current, current + 1)) {
+                if(perAddress.get(address) != count) {
+                    // Raced with the removal of an emptied counter
+                    count.decrementAndGet();
+                    continue;
+                }
+                channel.attr(COUNTED_ADDRESS).set(address);
+                return true;
+            }
+        }
+    }
+
+    private void reject(Channel channel) {
+        rejected.incrementAndGet();
+        channel.close();
+    }
+
+    public void requestStarted(Channel channel) {
+        AtomicInteger count = channel.attr(IN_FLIGHT).get();
+        if(count != null) {
+            count.incrementAndGet();
+        }
+    }
+
+    /**
+     * Called once the response of a request has been written, closes the
+     * connection if the server is draining and nothing else is pending.
+     */
+    public void requestFinished(Channel channel) {
+        AtomicInteger count = channel.attr(IN_FLIGHT).get();
+        int remaining = count == null ? 0 : count.decrementAndGet();
+        if(draining && remaining <= 0 && !isSpdy(channel)) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Listener calling {@link #requestFinished} for the future's channel.
+     */
+    public ChannelFutureListener finishListener() {
+        return finishListener;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Starts draining, connections opened from now on are closed right away.
+     */
+    public void drain() {
+        if(draining) {
+            return;
+        }
+        drainStarted = System.currentTimeMillis();
+        draining = true;
+        for(Channel channel : channels) {
+            if(isSpdy(channel) || isIdle(channel)) {
+                channel.close();
+            }
+        }
+    }
+
+    public ChannelGroupFuture closeAll() {
+        return channels.close();
+    }
+
+    public int getOpenConnections() {
+        return channels.size();
+    }
+
+    public Map<String, Object> progress() {
+        Map<String, Object> progress = new LinkedHashMap<String, Object>();
+        int inFlight = 0;
+        for(Channel channel : channels) {
+            AtomicInteger count = channel.attr(IN_FLIGHT).get();
+            if(count != null) {
+                inFlight += count.get();
+            }
+        }
+        progress.put("draining", draining);
+        progress.put("open-connections", channels.size());
+        progress.put("in-flight", inFlight);
+        progress.put("elapsed-ms", draining ? System.currentTimeMillis() - drainStarted : 0);
+        return progress;
+    }
+
+    @Override
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+        snapshot.put("open", channels.size());
+        snapshot.put("remote-addresses", perAddress.size());
+        snapshot.put("rejected", rejected.get());
+        snapshot.put("idle-closed", idleClosed.get());
+        return snapshot;
+    }
+
+    private static boolean isSpdy(Channel channel) {
+        return channel.pipeline().get(SPDY_SESSION_HANDLER) != null;
+    }
+
+    private static boolean isIdle(Channel channel) {
+        AtomicInteger count = channel.attr(IN_FLIGHT).get();
+        MetricsHandler metrics = MetricsHandler.get(channel);
+        return (count == null || count.get() == 0) &&
+               (metrics == null || !metrics.isReceiving());
+    }
+}
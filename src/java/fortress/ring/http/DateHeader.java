@@ -0,0 +1,49 @@
+package fortress.ring.http;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Value of the Date response header, formatted at most once per second
+ * and shared by every response sent within that second.
+ */
+public final class DateHeader {
+    private static final ThreadLocal<SimpleDateFormat> FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format;
+        }
+    };
+
+    private static volatile Cached cached = new Cached(-1, null);
+
+    private DateHeader() {
+    }
+
+    /**
+     * RFC 1123 date for the current second.
+     */
+    public static String now() {
+        long second = System.currentTimeMillis() / 1000;
+        Cached current = cached;
+        if(current.second != second) {
+            current = new Cached(second, FORMAT.get().format(new Date(second * 1000)));
+            cached = current;
+        }
+        return current.value;
+    }
+
+    private static final class Cached {
+        final long second;
+        final String value;
+
+        Cached(long second, String value) {
+            this.second = second;
+            this.value = value;
+        }
+    }
+}
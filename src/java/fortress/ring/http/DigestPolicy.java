@@ -0,0 +1,113 @@
+package fortress.ring.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.base64.Base64;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.CharsetUtil;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Which digests are computed for a request body, while an upload is
+ * written to disk or once a smaller one is aggregated in memory, and
+ * whether the Content-MD5 and Digest (RFC 3230) request headers are
+ * checked against them.
+ */
+public class DigestPolicy {
+    public static final DigestPolicy NONE = new DigestPolicy(Collections.<String>emptyList(), false);
+
+    private final List<String> algorithms;
+    private final boolean verify;
+
+    /**
+     * @param algorithms MessageDigest algorithm names, i.e. SHA-256
+     * @param verify check the digests announced by the request headers
+     */
+    public DigestPolicy(List<String> algorithms, boolean verify) {
+        for(String algorithm : algorithms) {
+            try {
+                MessageDigest.getInstance(algorithm);
+            } catch(NoSuchAlgorithmException ex) {
+                throw new IllegalArgumentException("Unknown digest algorithm " + algorithm, ex);
+            }
+        }
+        this.algorithms = new ArrayList<String>(algorithms);
+        this.verify = verify;
+    }
+
+    /**
+     * Digests for the upload of the given request, null if there is
+     * nothing to compute. Fails if the digest headers are malformed.
+     */
+    public UploadDigests start(HttpRequest request) throws UploadVerificationException {
+        Map<String, byte[]> expected = verify ? expected(request) : Collections.<String, byte[]>emptyMap();
+        if(algorithms.isEmpty() && expected.isEmpty()) {
+            return null;
+        }
+        return new UploadDigests(algorithms, expected);
+    }
+
+    /**
+     * Digests of the content of an aggregated request, algorithm to hex
+     * encoded digest. Fails if they don't match the digest headers.
+     */
+    public Map<String, String> verify(FullHttpRequest request) throws UploadVerificationException {
+        UploadDigests digests = start(request);
+        if(digests == null) {
+            return Collections.emptyMap();
+        }
+        digests.update(request.content());
+        digests.finish();
+        return digests.getResults();
+    }
+
+    private static Map<String, byte[]> expected(HttpRequest request) throws UploadVerificationException {
+        Map<String, byte[]> expected = new LinkedHashMap<String, byte[]>();
+        String md5 = request.headers().get("Content-MD5");
+        if(md5 != null) {
+            expected.put("MD5", decode("Content-MD5", md5.trim()));
+        }
+        String digest = request.headers().get("Digest");
+        if(digest != null) {
+            for(String instance : digest.split(",")) {
+                int separator = instance.indexOf('=');
+                if(separator > 0) {
+                    expected.put(algorithm(instance.substring(0, separator).trim()),
+                                 decode("Digest", instance.substring(separator + 1).trim()));
+                }
+            }
+        }
+        return expected;
+    }
+
+    private static String algorithm(String name) {
+        String algorithm = name.toUpperCase();
+        return "SHA".equals(algorithm) ? "SHA-1" : algorithm;
+    }
+
+    private static byte[] decode(String header, String base64) throws UploadVerificationException {
+        ByteBuf encoded = Unpooled.copiedBuffer(base64, CharsetUtil.US_ASCII);
+        try {
+            ByteBuf decoded = Base64.decode(encoded);
+            try {
+                byte[] bytes = new byte[decoded.readableBytes()];
+                decoded.readBytes(bytes);
+                return bytes;
+            } finally {
+                decoded.release();
+            }
+        } catch(IllegalArgumentException ex) {
+            throw new UploadVerificationException("Malformed " + header + " header");
+        } finally {
+            encoded.release();
+        }
+    }
+}
@@ -2,14 +2,22 @@ package fortress.ring.http;
 
 import io.netty.handler.codec.http.DefaultHttpRequest;
 import java.io.File;
+import java.util.Collections;
+import java.util.Map;
 
 public class DiskHttpWrapper {
     private DefaultHttpRequest request;
     private File fileBody;
+    private Map<String, String> digests;
 
     public DiskHttpWrapper(DefaultHttpRequest request, File fileBody) {
+        this(request, fileBody, Collections.<String, String>emptyMap());
+    }
+
+    public DiskHttpWrapper(DefaultHttpRequest request, File fileBody, Map<String, String> digests) {
         this.request = request;
         this.fileBody = fileBody;
+        this.digests = digests;
     }
 
     public DefaultHttpRequest getRequest() {
@@ -20,4 +28,11 @@ public class DiskHttpWrapper {
         return fileBody;
     }
 
+    /**
+     * Algorithm to hex digest of the body, computed while it was written.
+     */
+    public Map<String, String> getDigests() {
+        return digests;
+    }
+
 }
@@ -0,0 +1,138 @@
+package fortress.ring.http;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.IPersistentVector;
+import clojure.lang.ITransientMap;
+import clojure.lang.PersistentArrayMap;
+import clojure.lang.PersistentVector;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+
+import java.nio.charset.Charset;
+
+/**
+ * Decodes application/x-www-form-urlencoded data into a ring params map,
+ * string keys to a string or, for repeated keys, a vector of strings.
+ *
+ * Data is read straight from the buffer by index without moving its
+ * reader index, components without escapes become strings without any
+ * intermediate copy. Requests with more than maxParams parameters or
+ * more than maxBytes of data are rejected, which keeps hash flooding
+ * payloads away from the params maps.
+ */
+public class FormDecoder {
+    private final int maxParams;
+    private final int maxBytes;
+
+    /**
+     * @param maxParams parameters allowed per query string or form, 0 for
+     *        no limit
+     * @param maxBytes bytes of form data allowed, 0 for no limit
+     */
+    public FormDecoder(int maxParams, int maxBytes) {
+        this.maxParams = maxParams;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Decodes the readable bytes of the buffer as they are now, the buffer
+     * may be read afterwards without affecting the result of later calls
+     * with the same index and length.
+     */
+    public IPersistentMap decode(ByteBuf buffer, int index, int length, Charset charset) {
+        if(maxBytes > 0 && length > maxBytes) {
+            throw new BadRequestException("Form data larger than " + maxBytes + " bytes");
+        }
+        ITransientMap params = PersistentArrayMap.EMPTY.asTransient();
+        int count = 0;
+        int end = index + length;
+        int start = index;
+        while(start < end) {
+            int separator = buffer.indexOf(start, end, (byte) '&');
+            int segmentEnd = separator < 0 ? end : separator;
+            if(segmentEnd > start) {
+                if(maxParams > 0 && ++count > maxParams) {
+                    throw new BadRequestException("More than " + maxParams + " parameters");
+                }
+                int equals = buffer.indexOf(start, segmentEnd, (byte) '=');
+                String key;
+                String value;
+                if(equals < 0) {
+                    key = component(buffer, start, segmentEnd, charset);
+                    value = "";
+                } else {
+                    key = component(buffer, start, equals, charset);
+                    value = component(buffer, equals + 1, segmentEnd, charset);
+                }
+                params = add(params, key, value);
+            }
+            start = segmentEnd + 1;
+        }
+        return params.persistent();
+    }
+
+    /**
+     * Decodes a query string, its chars are the bytes of the request line.
+     */
+    public IPersistentMap decode(String query, Charset charset) {
+        if(query == null || query.isEmpty()) {
+            return PersistentArrayMap.EMPTY;
+        }
+        ByteBuf buffer = Unpooled.wrappedBuffer(query.getBytes(CharsetUtil.ISO_8859_1));
+        return decode(buffer, 0, buffer.readableBytes(), charset);
+    }
+
+    private static ITransientMap add(ITransientMap params, String key, String value) {
+        Object current = params.valAt(key);
+        if(current == null) {
+            return params.assoc(key, value);
+        }
+        if(current instanceof IPersistentVector) {
+            return params.assoc(key, ((IPersistentVector) current).cons(value));
+        }
+        return params.assoc(key, PersistentVector.create(current, value));
+    }
+
+    private static String component(ByteBuf buffer, int from, int to, Charset charset) {
+        int escape = -1;
+        for(int i = from; i < to; i++) {
+            byte b = buffer.getByte(i);
+            if(b == '%' || b == '+') {
+                escape = i;
+                break;
+            }
+        }
+        if(escape < 0) {
+            return buffer.toString(from, to - from, charset);
+        }
+        byte[] bytes = new byte[to - from];
+        buffer.getBytes(from, bytes, 0, escape - from);
+        int length = escape - from;
+        for(int i = escape; i < to; i++) {
+            byte b = buffer.getByte(i);
+            if(b == '+') {
+                bytes[length++] = ' ';
+            } else if(b == '%' && i + 2 < to && hex(buffer.getByte(i + 1)) >= 0 && hex(buffer.getByte(i + 2)) >= 0) {
+                bytes[length++] = (byte) ((hex(buffer.getByte(i + 1)) << 4) | hex(buffer.getByte(i + 2)));
+                i += 2;
+            } else {
+                bytes[length++] = b;
+            }
+        }
+        return new String(bytes, 0, length, charset);
+    }
+
+    private static int hex(byte b) {
+        if(b >= '0' && b <= '9') {
+            return b - '0';
+        }
+        if(b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        }
+        if(b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        return -1;
+    }
+}
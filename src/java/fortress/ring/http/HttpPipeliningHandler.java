@@ -0,0 +1,186 @@
+package fortress.ring.http;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.AttributeKey;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+/**
+ * HTTP/1.1 pipelining for the plain pipeline, sits right after the codec.
+ *
+ * Every request gets a sequence number when it is handed to the ring
+ * handler, or answered without it as error responses are, and its response
+ * is written only once the responses of the requests before it have been
+ * written, so answers leave in request order even if they are produced out
+ * of order.
+ *
+ * Flushes requested while the event loop is reading are held back and
+ * issued once on channelReadComplete, so responses to requests that
+ * arrived together go out in a single syscall.
+ *
+ * Once maxPipelined requests are waiting for their response the channel
+ * stops reading until one is written.
+ *
+ * When the connection closes the responses still waiting for their turn
+ * are written right away, as they come for the requests still with the
+ * handler. Those writes fail, which releases or closes their bodies and
+ * records them as completed like any other failed write.
+ *
+ * One instance per channel, state is only touched from its event loop.
+ */
+public class HttpPipeliningHandler extends ChannelDuplexHandler {
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(HttpPipeliningHandler.class);
+    private static final AttributeKey<HttpPipeliningHandler> KEY = new AttributeKey<HttpPipeliningHandler>("fortress.pipelining");
+
+    private final int maxPipelined;
+    private final TreeMap<Long, Callable<?>> pending = new TreeMap<Long, Callable<?>>();
+    private final ArrayDeque<HttpRequest> unclaimed = new ArrayDeque<HttpRequest>();
+    private final ChannelFutureListener written = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            responseWritten(future.channel());
+        }
+    };
+    private ChannelHandlerContext ctx;
+    private long sequence;
+    private long next;
+    private int outstanding;
+    private boolean reading;
+    private boolean flushPending;
+    private boolean closed;
+
+    /**
+     * @param maxPipelined requests waiting for a response above which the
+     *        channel stops reading, 0 for no limit
+     */
+    public HttpPipeliningHandler(int maxPipelined) {
+        this.maxPipelined = maxPipelined;
+    }
+
+    public static HttpPipeliningHandler get(Channel channel) {
+        return channel.attr(KEY).get();
+    }
+
+    /**
+     * Sequence of the oldest request not claimed yet, for the ring handler
+     * or for an error response. Requests must claim it in the order they
+     * arrived.
+     */
+    public long nextSequence() {
+        unclaimed.poll();
+        return sequence++;
+    }
+
+    /**
+     * Head of the oldest request that arrived but did not claim its
+     * sequence yet, null if there is none.
+     */
+    public HttpRequest unclaimedRequest() {
+        return unclaimed.peek();
+    }
+
+    /**
+     * Runs the write of the response for the given sequence now if it is
+     * next in line, otherwise once the responses before it are written.
+     * The write may return the future of its last write, the request stops
+     * counting as outstanding when it completes. Once the connection is
+     * closed the write runs right away.
+     *
+     * Must be called from the event loop.
+     */
+    public void respond(long sequence, Callable<?> write) throws Exception {
+        if(closed) {
+            run(write);
+            return;
+        }
+        if(sequence != next) {
+            pending.put(sequence, write);
+            return;
+        }
+        run(write);
+        Callable<?> queued;
+        while((queued = pending.remove(next)) != null) {
+            run(queued);
+        }
+    }
+
+    private void run(Callable<?> write) throws Exception {
+        next++;
+        Object result = write.call();
+        if(result instanceof ChannelFuture) {
+            ((ChannelFuture) result).addListener(written);
+        } else {
+            responseWritten(ctx.channel());
+        }
+    }
+
+    private void responseWritten(Channel channel) {
+        outstanding--;
+        if(maxPipelined > 0 && outstanding < maxPipelined) {
+            ReadSuspension.resume(channel, ReadSuspension.PIPELINING);
+        }
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+        ctx.channel().attr(KEY).set(this);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        reading = true;
+        if(msg instanceof HttpRequest) {
+            unclaimed.add((HttpRequest) msg);
+            outstanding++;
+            if(maxPipelined > 0 && outstanding >= maxPipelined) {
+                ReadSuspension.suspend(ctx.channel(), ReadSuspension.PIPELINING);
+            }
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        reading = false;
+        if(flushPending) {
+            flushPending = false;
+            ctx.flush();
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        if(reading) {
+            flushPending = true;
+        } else {
+            ctx.flush();
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        closed = true;
+        unclaimed.clear();
+        Map.Entry<Long, Callable<?>> abandoned;
+        while((abandoned = pending.pollFirstEntry()) != null) {
+            try {
+                run(abandoned.getValue());
+            } catch(Exception ex) {
+                logger.debug("Could not abandon the response of a closed connection", ex);
+            }
+        }
+        super.channelInactive(ctx);
+    }
+}
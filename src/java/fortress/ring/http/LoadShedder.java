@@ -0,0 +1,56 @@
+package fortress.ring.http;
+
+import fortress.ring.metrics.EventLoopWatchdog;
+import fortress.ring.metrics.MetricsSource;
+import fortress.ring.metrics.ServerMetrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a request should be answered with a 503 right away,
+ * before a ring request is even built, because the server is overloaded.
+ */
+public class LoadShedder implements MetricsSource {
+    private final ServerMetrics metrics;
+    private final EventLoopWatchdog watchdog;
+    private final long maxInFlight;
+    private final long maxLagNanos;
+    private final AtomicLong shedInFlight = new AtomicLong();
+    private final AtomicLong shedLag = new AtomicLong();
+
+    /**
+     * @param maxInFlight requests in progress above which new ones are shed,
+     *        0 for no limit
+     * @param maxLagMillis event loop lag above which new requests are shed,
+     *        0 for no limit, needs a watchdog
+     */
+    public LoadShedder(ServerMetrics metrics, EventLoopWatchdog watchdog, long maxInFlight, long maxLagMillis) {
+        this.metrics = metrics;
+        this.watchdog = watchdog;
+        this.maxInFlight = maxInFlight;
+        this.maxLagNanos = TimeUnit.MILLISECONDS.toNanos(maxLagMillis);
+    }
+
+    public boolean shouldShed() {
+        if(maxInFlight > 0 && metrics.getInFlight() >= maxInFlight) {
+            shedInFlight.incrementAndGet();
+            return true;
+        }
+        if(maxLagNanos > 0 && watchdog != null && watchdog.maxLagNanos() > maxLagNanos) {
+            shedLag.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+        snapshot.put("shed-in-flight", shedInFlight.get());
+        snapshot.put("shed-lag", shedLag.get());
+        return snapshot;
+    }
+}
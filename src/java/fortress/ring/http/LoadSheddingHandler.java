@@ -0,0 +1,60 @@
+package fortress.ring.http;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Sheds requests as soon as their head is decoded, before the body is
+ * aggregated or spilled to disk. Sits right after the codec of the plain
+ * pipeline.
+ *
+ * A shed request goes on as a {@link Shed} message for the ring handler
+ * to answer with a 503, and the rest of its body is dropped.
+ *
+ * One instance per channel, state is only touched from its event loop.
+ */
+public class LoadSheddingHandler extends ChannelInboundHandlerAdapter {
+    private final LoadShedder shedder;
+    private boolean dropping;
+
+    public LoadSheddingHandler(LoadShedder shedder) {
+        this.shedder = shedder;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if(msg instanceof HttpRequest) {
+            dropping = false;
+            if(shedder.shouldShed()) {
+                dropping = !(msg instanceof LastHttpContent);
+                ctx.fireChannelRead(new Shed((HttpRequest) msg));
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+        } else if(dropping && msg instanceof HttpContent) {
+            dropping = !(msg instanceof LastHttpContent);
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    /**
+     * Head of a request that was shed.
+     */
+    public static final class Shed {
+        private final HttpRequest request;
+
+        Shed(HttpRequest request) {
+            this.request = request;
+        }
+
+        public HttpRequest getRequest() {
+            return request;
+        }
+    }
+}
@@ -7,29 +7,37 @@ import io.netty.handler.codec.http.DefaultHttpRequest;
 import io.netty.handler.codec.http.DefaultHttpContent;
 import io.netty.handler.codec.http.DefaultLastHttpContent;
 import io.netty.util.ReferenceCounted;
-import java.io.FileOutputStream;
 import java.io.File;
 import java.util.List;
 
 public class MultipartDiskHandler extends MessageToMessageDecoder<HttpObject> {
 
     private MultipartProgressListener progressListener;
-    private FileOutputStream outputStream;
     private static final String CONTENT_TYPE = "Content-Type";
     private static final String CONTENT_LENGTH = "Content-Length";
     private DefaultHttpRequest currentMessage;
     private boolean multipartRequest = false;
     private boolean fileBasedUpload = false;
-    private File tempDirectory;
-    private File tempFile;
+    private TempDirectories tempDirectories;
+    private DigestPolicy digestPolicy;
+    private SpillFile spillFile;
     private long maxMemorySize;
 
-    public MultipartDiskHandler(File tempDirectory, long maxMemorySize, MultipartProgressListener progressListener) {
-        this.tempDirectory = tempDirectory;
+    public MultipartDiskHandler(TempDirectories tempDirectories, DigestPolicy digestPolicy, long maxMemorySize, MultipartProgressListener progressListener) {
+        this.tempDirectories = tempDirectories;
+        this.digestPolicy = digestPolicy;
         this.maxMemorySize = maxMemorySize;
         this.progressListener = progressListener;
     }
 
+    public MultipartDiskHandler(TempDirectories tempDirectories, long maxMemorySize, MultipartProgressListener progressListener) {
+        this(tempDirectories, DigestPolicy.NONE, maxMemorySize, progressListener);
+    }
+
+    public MultipartDiskHandler(File tempDirectory, long maxMemorySize, MultipartProgressListener progressListener) {
+        this(new TempDirectories(tempDirectory), maxMemorySize, progressListener);
+    }
+
     @Override
     public boolean acceptInboundMessage(Object msg) {
         if(msg instanceof DefaultHttpRequest) {
@@ -70,9 +78,8 @@ public class MultipartDiskHandler extends MessageToMessageDecoder<HttpObject> {
         multipartRequest = true;
         if(fileBasedUpload) {
             currentMessage = request;
-            tempFile = createFile();
             try {
-                outputStream = new FileOutputStream(tempFile);
+                spillFile = tempDirectories.create(contentLength, digestPolicy.start(request));
             } catch(Exception ex) {
                 throw new RuntimeException(ex);
             }
@@ -85,48 +92,57 @@ public class MultipartDiskHandler extends MessageToMessageDecoder<HttpObject> {
     private void writeContent(DefaultHttpContent content) {
         try {
             int length = content.content().readableBytes();
+            if(fileBasedUpload && spillFile == null) {
+                // Rest of an aborted upload
+                content.content().release();
+                return;
+            }
             if(fileBasedUpload) {
-                content.content().readBytes(outputStream, length);
+                spillFile.write(content.content());
                 content.content().release();
             }
             if(progressListener != null) {
                 progressListener.bytesWritten(length);
             }
         } catch(Exception ex) {
-            if(outputStream != null) {
-                try {
-                    outputStream.close();
-                } catch(Exception iex) {
-                    //Report original exception
-                    throw new RuntimeException(ex);
-                }
-            }
+            abort();
             throw new RuntimeException(ex);
         }
     }
 
+    private void abort() {
+        if(spillFile != null) {
+            spillFile.abort();
+            spillFile = null;
+            if(progressListener != null) {
+                progressListener.uploadFinished();
+            }
+        }
+    }
+
     private void handleEnding(List<Object> out) {
+        if(fileBasedUpload && spillFile == null) {
+            return;
+        }
         try {
             if(fileBasedUpload) {
-                outputStream.close();
-                out.add(new DiskHttpWrapper(currentMessage, tempFile));
+                spillFile.finish();
+                out.add(new DiskHttpWrapper(currentMessage, spillFile.getFile(), spillFile.getDigests()));
+                spillFile = null;
             }
             if(progressListener != null) {
                 progressListener.uploadFinished();
             }
         } catch(Exception ex) {
+            abort();
             throw new RuntimeException(ex);
         }
     }
 
-    private File createFile() {
-        try {
-            File f = File.createTempFile("fortress", ".multipart", tempDirectory);
-            f.deleteOnExit();
-            return f;
-        } catch(Exception ex) {
-            throw new RuntimeException(ex);
-        }
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        abort();
+        super.channelInactive(ctx);
     }
 
 }
@@ -0,0 +1,105 @@
+package fortress.ring.http;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bytes per second budget shared by any number of channels.
+ *
+ * Every transfer books the time it takes at the configured rate after the
+ * transfers booked before it, the caller is told how long to hold off so
+ * the rate is kept. Up to a tenth of a second of unused budget may be
+ * spent in a burst. A limit of 0 only measures throughput.
+ */
+public class RateLimiter {
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long limit;
+    private final AtomicLong booked = new AtomicLong(System.nanoTime());
+    private final AtomicLong throttledNanos = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong currentSecond = new AtomicLong(System.nanoTime() / SECOND);
+    private final AtomicLong currentBytes = new AtomicLong();
+    private volatile long lastSecondBytes;
+
+    /**
+     * @param limit bytes per second, 0 for no limit
+     */
+    public RateLimiter(long limit) {
+        this.limit = limit;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Accounts for the transfer of the given bytes, returns the nanoseconds
+     * the caller should wait before transferring more, 0 if none.
+     */
+    public long acquire(long bytes) {
+        long now = System.nanoTime();
+        measure(now, bytes);
+        if(limit <= 0 || bytes <= 0) {
+            return 0;
+        }
+        long cost = bytes * SECOND / limit;
+        for(;;) {
+            long current = booked.get();
+            long start = Math.max(current, now - BURST_NANOS);
+            long end = start + cost;
+            if(booked.compareAndSet(current, end)) {
+                return Math.max(0, end - now);
+            }
+        }
+    }
+
+    /**
+     * Adds time a channel spent throttled because of this limit.
+     */
+    public void throttled(long nanos) {
+        throttledNanos.addAndGet(nanos);
+    }
+
+    private void measure(long now, long bytes) {
+        total.addAndGet(bytes);
+        long second = now / SECOND;
+        long previous = currentSecond.get();
+        if(second != previous && currentSecond.compareAndSet(previous, second)) {
+            long finished = currentBytes.getAndSet(0);
+            lastSecondBytes = second == previous + 1 ? finished : 0;
+        }
+        currentBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Bytes transferred since the limiter was created.
+     */
+    public long getBytes() {
+        return total.get();
+    }
+
+    /**
+     * Bytes transferred during the last full second.
+     */
+    public long getThroughput() {
+        long second = System.nanoTime() / SECOND;
+        long current = currentSecond.get();
+        if(second == current) {
+            return lastSecondBytes;
+        }
+        return second == current + 1 ? currentBytes.get() : 0;
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+        snapshot.put("limit", limit);
+        snapshot.put("bytes-per-second", getThroughput());
+        snapshot.put("bytes", total.get());
+        snapshot.put("throttled-ms", TimeUnit.NANOSECONDS.toMillis(throttledNanos.get()));
+        return snapshot;
+    }
+}
@@ -0,0 +1,51 @@
+package fortress.ring.http;
+
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+/**
+ * Auto read shared by the handlers that hold back reading on a channel.
+ *
+ * Each handler suspends and resumes with its own reason bit, auto read is
+ * turned back on only once no reason holds it anymore, so one handler
+ * never resumes a channel another one still wants suspended.
+ *
+ * Must be called from the event loop of the channel.
+ */
+final class ReadSuspension {
+    static final int PIPELINING = 1;
+    static final int TRAFFIC_SHAPING = 1 << 1;
+
+    private static final AttributeKey<Integer> KEY = new AttributeKey<Integer>("fortress.readSuspension");
+
+    private ReadSuspension() {
+    }
+
+    static void suspend(Channel channel, int reason) {
+        Attribute<Integer> attribute = channel.attr(KEY);
+        int reasons = reasons(attribute);
+        if((reasons & reason) == 0) {
+            attribute.set(reasons | reason);
+            if(reasons == 0) {
+                channel.config().setAutoRead(false);
+            }
+        }
+    }
+
+    static void resume(Channel channel, int reason) {
+        Attribute<Integer> attribute = channel.attr(KEY);
+        int reasons = reasons(attribute);
+        if((reasons & reason) != 0) {
+            attribute.set(reasons & ~reason);
+            if(reasons == reason) {
+                channel.config().setAutoRead(true);
+            }
+        }
+    }
+
+    private static int reasons(Attribute<Integer> attribute) {
+        Integer reasons = attribute.get();
+        return reasons == null ? 0 : reasons;
+    }
+}
@@ -0,0 +1,116 @@
+package fortress.ring.http;
+
+import fortress.ring.metrics.MetricsSource;
+
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs ring handlers off the event loops so they can be given a deadline.
+ *
+ * When a deadline expires the request is answered right away by the
+ * event loop and the thread running its handler is interrupted. Handlers
+ * finishing after their deadline have their response thrown away.
+ *
+ * Requests wait for a thread in a bounded queue, once it is full they are
+ * rejected and get a 503.
+ */
+public class RequestDeadlines implements MetricsSource {
+    private final long timeout;
+    private final String header;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong finishedLate = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param timeout milliseconds a request may take when neither the
+     *        handler nor the request ask for another deadline
+     * @param header request header with a deadline in milliseconds, it can
+     *        only shorten the deadline, null to ignore requests
+     * @param threads threads running handlers
+     * @param queue requests that may wait for a thread, 0 for none
+     */
+    public RequestDeadlines(long timeout, String header, int threads, int queue, ThreadFactory threadFactory) {
+        this.timeout = timeout;
+        this.header = header;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                               queue > 0
+                                                   ? new ArrayBlockingQueue<Runnable>(queue)
+                                                   : new SynchronousQueue<Runnable>(),
+                                               threadFactory,
+                                               new RejectedExecutionHandler() {
+                                                   @Override
+                                                   public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                                                       rejected.incrementAndGet();
+                                                       throw new RejectedExecutionException("Request queue is full");
+                                                   }
+                                               });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Milliseconds the given request may take.
+     *
+     * @param handlerTimeout deadline asked by the handler metadata, 0 to
+     *        use the server one
+     */
+    public long timeoutFor(HttpRequest request, long handlerTimeout) {
+        long deadline = handlerTimeout > 0 ? handlerTimeout : timeout;
+        String requested = header == null ? null : request.headers().get(header);
+        if(requested != null) {
+            try {
+                long value = Long.parseLong(requested.trim());
+                if(value > 0 && (deadline <= 0 || value < deadline)) {
+                    deadline = value;
+                }
+            } catch(NumberFormatException ex) {
+                // Ignored, the deadline stays as configured
+            }
+        }
+        return deadline;
+    }
+
+    /**
+     * Runs the task on a handler thread, throws RejectedExecutionException
+     * when the queue is full.
+     */
+    public Future<?> submit(Runnable task) {
+        return executor.submit(task);
+    }
+
+    public void timedOut() {
+        timedOut.incrementAndGet();
+    }
+
+    public void finishedLate() {
+        finishedLate.incrementAndGet();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+        snapshot.put("timeout-ms", timeout);
+        snapshot.put("timed-out", timedOut.get());
+        snapshot.put("finished-late", finishedLate.get());
+        snapshot.put("rejected", rejected.get());
+        snapshot.put("active", executor.getActiveCount());
+        snapshot.put("queued", executor.getQueue().size());
+        return snapshot;
+    }
+}
@@ -0,0 +1,113 @@
+package fortress.ring.http;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * File an upload is written to, keeps the bytes outstanding and written
+ * of its {@link TempDirectories} directory up to date.
+ *
+ * Digests, if any, are updated from each chunk before it is written and
+ * the upload is checked against its declared size as it goes.
+ *
+ * Used from a single event loop.
+ */
+public class SpillFile {
+    private final File file;
+    private final TempDirectories.Directory directory;
+    private final FileOutputStream outputStream;
+    private final UploadDigests digests;
+    private final long expectedBytes;
+    private long written;
+    private long outstanding;
+    private boolean closed;
+
+    SpillFile(File file, TempDirectories.Directory directory, long expectedBytes, UploadDigests digests) throws IOException {
+        this.file = file;
+        this.directory = directory;
+        this.outputStream = new FileOutputStream(file);
+        this.digests = digests;
+        this.expectedBytes = expectedBytes;
+        this.outstanding = Math.max(0, expectedBytes);
+        directory.outstanding.addAndGet(outstanding);
+        directory.files.incrementAndGet();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Writes the readable bytes of the buffer, moving its reader index.
+     */
+    public void write(ByteBuf buffer) throws IOException {
+        int length = buffer.readableBytes();
+        if(expectedBytes > 0 && written + length > expectedBytes) {
+            throw new UploadVerificationException("Upload is larger than its Content-Length of " + expectedBytes);
+        }
+        if(digests != null) {
+            digests.update(buffer);
+        }
+        buffer.readBytes(outputStream, length);
+        written += length;
+        directory.throughput.acquire(length);
+        long done = Math.min(length, outstanding);
+        outstanding -= done;
+        directory.outstanding.addAndGet(-done);
+    }
+
+    public void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        directory.outstanding.addAndGet(-outstanding);
+        directory.files.decrementAndGet();
+        outstanding = 0;
+        outputStream.close();
+    }
+
+    /**
+     * Closes the file of a complete upload and verifies its size and
+     * digests, the file is deleted if they do not match.
+     */
+    public void finish() throws IOException {
+        close();
+        try {
+            if(expectedBytes > 0 && written != expectedBytes) {
+                throw new UploadVerificationException("Upload has " + written + " bytes, expected " + expectedBytes);
+            }
+            if(digests != null) {
+                digests.finish();
+            }
+        } catch(UploadVerificationException ex) {
+            file.delete();
+            throw ex;
+        }
+    }
+
+    /**
+     * Algorithm to hex digest of a finished upload, empty if none was
+     * computed.
+     */
+    public Map<String, String> getDigests() {
+        return digests == null ? Collections.<String, String>emptyMap() : digests.getResults();
+    }
+
+    /**
+     * Closes and deletes the file of an upload that will not complete.
+     */
+    public void abort() {
+        try {
+            close();
+        } catch(IOException ex) {
+            // The file is deleted anyway
+        }
+        file.delete();
+    }
+}
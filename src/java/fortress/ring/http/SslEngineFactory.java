@@ -0,0 +1,129 @@
+package fortress.ring.http;
+
+import fortress.ring.metrics.TlsMetrics;
+
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.lang.reflect.Method;
+import java.security.Provider;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * Creates the server side SSLEngine of every secure connection.
+ *
+ * With the openssl provider engines come from Conscrypt, whose uber jar
+ * bundles BoringSSL statically, when it is on the classpath and key
+ * managers were given to build a context from. Otherwise, or if the native
+ * library fails to load, the JDK engine of the supplied SSLContext is
+ * used. Conscrypt is looked up reflectively so it stays optional.
+ *
+ * The server session cache of the context is sized for resumption.
+ * Session tickets can only be switched per engine on Conscrypt, the JDK
+ * engine of Java 7 and 8 resumes from the session cache alone.
+ */
+public class SslEngineFactory {
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(SslEngineFactory.class);
+    private static final String CONSCRYPT = "org.conscrypt.Conscrypt";
+
+    private final SSLContext context;
+    private final boolean openSsl;
+    private final boolean sessionTickets;
+    private final Method setUseSessionTickets;
+    private final TlsMetrics metrics;
+
+    /**
+     * @param jdkContext context used by the JDK engine, may be null when
+     *        key managers are given
+     * @param keyManagers key managers to build a context from, required by
+     *        the openssl provider
+     * @param provider "openssl" or "jdk"
+     * @param sessionCacheSize sessions kept for resumption, 0 for no limit
+     * @param sessionTimeout seconds a session can be resumed, 0 for no limit
+     * @param sessionTickets whether Conscrypt engines issue session tickets
+     */
+    public SslEngineFactory(SSLContext jdkContext, KeyManager[] keyManagers, String provider,
+                            int sessionCacheSize, int sessionTimeout, boolean sessionTickets,
+                            TlsMetrics metrics) throws Exception {
+        SSLContext openSslContext = null;
+        Method tickets = null;
+        if("openssl".equals(provider)) {
+            if(keyManagers == null) {
+                logger.warn("The openssl provider needs key managers, using the JDK engine");
+            } else {
+                try {
+                    Class<?> conscrypt = Class.forName(CONSCRYPT);
+                    Provider conscryptProvider = (Provider) conscrypt.getMethod("newProvider").invoke(null);
+                    openSslContext = SSLContext.getInstance("TLS", conscryptProvider);
+                    openSslContext.init(keyManagers, null, null);
+                    tickets = conscrypt.getMethod("setUseSessionTickets", SSLEngine.class, boolean.class);
+                } catch(ClassNotFoundException ex) {
+                    logger.warn("Conscrypt is not on the classpath, using the JDK engine");
+                } catch(Throwable t) {
+                    logger.warn("OpenSSL is unavailable, using the JDK engine", t);
+                    openSslContext = null;
+                    tickets = null;
+                }
+            }
+        }
+        if(openSslContext == null && jdkContext == null) {
+            jdkContext = SSLContext.getInstance("TLS");
+            jdkContext.init(keyManagers, null, null);
+        }
+        this.context = openSslContext != null ? openSslContext : jdkContext;
+        this.openSsl = openSslContext != null;
+        this.sessionTickets = sessionTickets;
+        this.setUseSessionTickets = tickets;
+        this.metrics = metrics;
+        if(metrics != null) {
+            metrics.setEngine(openSsl ? "openssl" : "jdk");
+        }
+
+        SSLSessionContext sessions = context.getServerSessionContext();
+        if(sessions != null) {
+            sessions.setSessionCacheSize(sessionCacheSize);
+            sessions.setSessionTimeout(sessionTimeout);
+        }
+        logger.info("Secure connections use the " + (openSsl ? "OpenSSL (Conscrypt)" : "JDK") + " engine");
+    }
+
+    /**
+     * Whether engines come from Conscrypt. Those do not support NPN so
+     * connections using them always speak HTTP/1.1.
+     */
+    public boolean isOpenSsl() {
+        return openSsl;
+    }
+
+    /**
+     * Context the engines come from.
+     */
+    public SSLContext getContext() {
+        return context;
+    }
+
+    public SSLEngine newEngine() throws Exception {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        if(setUseSessionTickets != null) {
+            setUseSessionTickets.invoke(null, engine, sessionTickets);
+        }
+        return engine;
+    }
+
+    /**
+     * SslHandler for a new connection whose handshake is recorded in the
+     * TLS metrics.
+     */
+    public SslHandler newHandler(SSLEngine engine) {
+        SslHandler handler = new SslHandler(engine);
+        if(metrics != null) {
+            handler.handshakeFuture().addListener(metrics.handshakeListener(engine, System.nanoTime()));
+        }
+        return handler;
+    }
+}
@@ -0,0 +1,139 @@
+package fortress.ring.http;
+
+import fortress.ring.metrics.MetricsSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Directories uploads are spilled to, usually one per disk.
+ *
+ * Each upload goes to the directory with the least bytes still to be
+ * written or, in round robin mode, to the next one in turn. Directories
+ * without room for the upload plus minFreeBytes are skipped.
+ */
+public class TempDirectories implements MetricsSource {
+    private final List<Directory> directories;
+    private final boolean roundRobin;
+    private final long minFreeBytes;
+    private final AtomicInteger turn = new AtomicInteger();
+    private final AtomicLong full = new AtomicLong();
+
+    public TempDirectories(List<File> paths, boolean roundRobin, long minFreeBytes) {
+        if(paths.isEmpty()) {
+            throw new IllegalArgumentException("At least one temp directory is needed");
+        }
+        List<Directory> directories = new ArrayList<Directory>();
+        for(File path : paths) {
+            directories.add(new Directory(path));
+        }
+        this.directories = Collections.unmodifiableList(directories);
+        this.roundRobin = roundRobin;
+        this.minFreeBytes = minFreeBytes;
+    }
+
+    public TempDirectories(File path) {
+        this(Collections.singletonList(path), false, 0);
+    }
+
+    /**
+     * Creates a file for an upload of about expectedBytes, digests may be
+     * null.
+     */
+    public SpillFile create(long expectedBytes, UploadDigests digests) throws IOException {
+        Directory directory = choose(Math.max(0, expectedBytes));
+        File file = File.createTempFile("fortress", ".multipart", directory.path);
+        file.deleteOnExit();
+        return new SpillFile(file, directory, expectedBytes, digests);
+    }
+
+    private Directory choose(long expectedBytes) throws IOException {
+        int size = directories.size();
+        int start = roundRobin ? (turn.getAndIncrement() & Integer.MAX_VALUE) % size : 0;
+        Directory chosen = null;
+        for(int i = 0; i < size; i++) {
+            Directory candidate = directories.get((start + i) % size);
+            if(!candidate.hasRoom(expectedBytes, minFreeBytes)) {
+                continue;
+            }
+            if(roundRobin) {
+                return candidate;
+            }
+            if(chosen == null || candidate.outstanding.get() < chosen.outstanding.get()) {
+                chosen = candidate;
+            }
+        }
+        if(chosen == null) {
+            full.incrementAndGet();
+            throw new TempSpaceExhaustedException("No temp directory has room for " + expectedBytes + " bytes");
+        }
+        return chosen;
+    }
+
+    public List<File> getPaths() {
+        List<File> paths = new ArrayList<File>();
+        for(Directory directory : directories) {
+            paths.add(directory.path);
+        }
+        return paths;
+    }
+
+    @Override
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+        snapshot.put("strategy", roundRobin ? "round-robin" : "least-outstanding");
+        snapshot.put("full", full.get());
+        Map<String, Object> paths = new LinkedHashMap<String, Object>();
+        for(Directory directory : directories) {
+            paths.put(directory.path.getPath(), directory.snapshot());
+        }
+        snapshot.put("directories", paths);
+        return snapshot;
+    }
+
+    private static long saturatedAdd(long a, long b) {
+        long sum = a + b;
+        // Overflows only when both have the same sign and the sum does not
+        if(((a ^ sum) & (b ^ sum)) < 0) {
+            return a < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+        return sum;
+    }
+
+    static final class Directory {
+        final File path;
+        final AtomicLong outstanding = new AtomicLong();
+        final AtomicLong files = new AtomicLong();
+        final RateLimiter throughput = new RateLimiter(0);
+
+        Directory(File path) {
+            this.path = path;
+        }
+
+        /**
+         * Room for bytes with minFree left once the uploads in progress
+         * are written. The sum saturates, so huge values mean no room
+         * instead of wrapping around.
+         */
+        boolean hasRoom(long bytes, long minFree) {
+            return saturatedAdd(saturatedAdd(bytes, outstanding.get()), minFree) <= path.getUsableSpace();
+        }
+
+        Map<String, Object> snapshot() {
+            Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+            snapshot.put("usable-bytes", path.getUsableSpace());
+            snapshot.put("outstanding-bytes", outstanding.get());
+            snapshot.put("open-files", files.get());
+            snapshot.put("bytes-written", throughput.getBytes());
+            snapshot.put("bytes-per-second", throughput.getThroughput());
+            return snapshot;
+        }
+    }
+}
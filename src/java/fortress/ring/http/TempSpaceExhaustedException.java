@@ -0,0 +1,15 @@
+package fortress.ring.http;
+
+import java.io.IOException;
+
+/**
+ * No temp directory has room for an upload, it is refused before reaching
+ * the ring handler.
+ */
+public class TempSpaceExhaustedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public TempSpaceExhaustedException(String message) {
+        super(message);
+    }
+}
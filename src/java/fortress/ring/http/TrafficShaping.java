@@ -0,0 +1,164 @@
+package fortress.ring.http;
+
+import fortress.ring.metrics.MetricsSource;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read and write limits of a server: global ones shared by every
+ * connection, per connection ones and per route class ones shared by the
+ * requests whose uri starts with the class prefix and their responses.
+ *
+ * Limits are in bytes per second, 0 means no limit. Throughput is measured
+ * either way.
+ */
+public class TrafficShaping implements MetricsSource {
+    private final RateLimiter read;
+    private final RateLimiter write;
+    private final long connectionReadLimit;
+    private final long connectionWriteLimit;
+    private final AtomicLong connectionReadThrottled = new AtomicLong();
+    private final AtomicLong connectionWriteThrottled = new AtomicLong();
+    private final List<Route> routes = new ArrayList<Route>();
+    private final ChannelHandler classifier = new RouteClassifier();
+
+    public TrafficShaping(long readLimit, long writeLimit, long connectionReadLimit, long connectionWriteLimit) {
+        this.read = new RateLimiter(readLimit);
+        this.write = new RateLimiter(writeLimit);
+        this.connectionReadLimit = connectionReadLimit;
+        this.connectionWriteLimit = connectionWriteLimit;
+    }
+
+    /**
+     * Adds a route class, requests whose uri starts with prefix share its
+     * limits. The longest matching prefix wins. Not thread safe, routes are
+     * meant to be added before the server starts.
+     */
+    public void addRoute(String prefix, long readLimit, long writeLimit) {
+        routes.add(new Route(prefix, new RateLimiter(readLimit), new RateLimiter(writeLimit)));
+    }
+
+    public Route classify(String uri) {
+        Route match = null;
+        for(Route route : routes) {
+            if(uri.startsWith(route.prefix) && (match == null || route.prefix.length() > match.prefix.length())) {
+                match = route;
+            }
+        }
+        return match;
+    }
+
+    public boolean hasRoutes() {
+        return !routes.isEmpty();
+    }
+
+    /**
+     * Handler shaping one channel, goes first in the pipeline.
+     */
+    public TrafficShapingHandler newHandler() {
+        return new TrafficShapingHandler(this,
+                                         connectionReadLimit > 0 ? new RateLimiter(connectionReadLimit) : null,
+                                         connectionWriteLimit > 0 ? new RateLimiter(connectionWriteLimit) : null);
+    }
+
+    /**
+     * Handler that applies the limits of the route class of every request,
+     * goes right after the http decoder.
+     */
+    public ChannelHandler getRouteClassifier() {
+        return classifier;
+    }
+
+    RateLimiter getRead() {
+        return read;
+    }
+
+    RateLimiter getWrite() {
+        return write;
+    }
+
+    void connectionThrottled(boolean reading, long nanos) {
+        (reading ? connectionReadThrottled : connectionWriteThrottled).addAndGet(nanos);
+    }
+
+    @Override
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+        snapshot.put("read", read.snapshot());
+        snapshot.put("write", write.snapshot());
+        Map<String, Object> connections = new LinkedHashMap<String, Object>();
+        connections.put("read-limit", connectionReadLimit);
+        connections.put("write-limit", connectionWriteLimit);
+        connections.put("read-throttled-ms", TimeUnit.NANOSECONDS.toMillis(connectionReadThrottled.get()));
+        connections.put("write-throttled-ms", TimeUnit.NANOSECONDS.toMillis(connectionWriteThrottled.get()));
+        snapshot.put("per-connection", connections);
+        Map<String, Object> classes = new LinkedHashMap<String, Object>();
+        for(Route route : routes) {
+            Map<String, Object> limits = new LinkedHashMap<String, Object>();
+            limits.put("read", route.read.snapshot());
+            limits.put("write", route.write.snapshot());
+            classes.put(route.prefix, limits);
+        }
+        snapshot.put("routes", classes);
+        return snapshot;
+    }
+
+    /**
+     * Marks requests without a route class in the response order.
+     */
+    static final Route NO_ROUTE = new Route("", null, null);
+
+    public static final class Route {
+        final String prefix;
+        final RateLimiter read;
+        final RateLimiter write;
+
+        Route(String prefix, RateLimiter read, RateLimiter write) {
+            this.prefix = prefix;
+            this.read = read;
+            this.write = write;
+        }
+    }
+
+    /**
+     * Books the requests on their route class and their responses on the
+     * route of their request.
+     */
+    @Sharable
+    private final class RouteClassifier extends ChannelDuplexHandler {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if(msg instanceof HttpRequest) {
+                TrafficShapingHandler handler = TrafficShapingHandler.get(ctx.channel());
+                if(handler != null) {
+                    handler.requestReceived(classify(((HttpRequest) msg).getUri()));
+                }
+            }
+            ctx.fireChannelRead(msg);
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if(msg instanceof HttpResponse) {
+                TrafficShapingHandler handler = TrafficShapingHandler.get(ctx.channel());
+                if(handler != null) {
+                    handler.responseStarted();
+                }
+            }
+            ctx.write(msg, promise);
+        }
+    }
+}
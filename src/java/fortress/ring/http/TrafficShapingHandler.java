@@ -0,0 +1,185 @@
+package fortress.ring.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.util.AttributeKey;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a channel within the limits of a {@link TrafficShaping}.
+ *
+ * Nothing is buffered here. Reads over the limit suspend auto read until
+ * the budget allows more, writes over the limit hold back the flush, the
+ * unflushed bytes make the channel unwritable and the chunked writers
+ * stop producing until it is flushed.
+ *
+ * Reads are booked on the route of the request being received, writes on
+ * the route of the request being answered, responses leave in request
+ * order.
+ *
+ * One instance per channel, state is only touched from its event loop.
+ */
+public class TrafficShapingHandler extends ChannelDuplexHandler {
+    private static final AttributeKey<TrafficShapingHandler> KEY = new AttributeKey<TrafficShapingHandler>("fortress.trafficShaping");
+    private static final long MINIMAL_WAIT = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final TrafficShaping shaping;
+    private final RateLimiter connectionRead;
+    private final RateLimiter connectionWrite;
+    private final ArrayDeque<TrafficShaping.Route> responseRoutes = new ArrayDeque<TrafficShaping.Route>();
+    private TrafficShaping.Route readRoute;
+    private TrafficShaping.Route writeRoute;
+    private boolean readSuspended;
+    private boolean flushScheduled;
+    private long writeResumeAt;
+    private RateLimiter cause;
+
+    TrafficShapingHandler(TrafficShaping shaping, RateLimiter connectionRead, RateLimiter connectionWrite) {
+        this.shaping = shaping;
+        this.connectionRead = connectionRead;
+        this.connectionWrite = connectionWrite;
+    }
+
+    public static TrafficShapingHandler get(Channel channel) {
+        return channel.attr(KEY).get();
+    }
+
+    /**
+     * Route class of the request being received, null for none. Its
+     * response is booked on the same route.
+     */
+    void requestReceived(TrafficShaping.Route route) {
+        readRoute = route;
+        responseRoutes.add(route == null ? TrafficShaping.NO_ROUTE : route);
+    }
+
+    /**
+     * A response starts, its bytes are booked on the route of its request.
+     */
+    void responseStarted() {
+        TrafficShaping.Route route = responseRoutes.poll();
+        writeRoute = route == TrafficShaping.NO_ROUTE ? null : route;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        ctx.channel().attr(KEY).set(this);
+    }
+
+    @Override
+    public void channelRead(final ChannelHandlerContext ctx, Object msg) throws Exception {
+        long wait = throttle(size(msg), true);
+        if(wait >= MINIMAL_WAIT && !readSuspended) {
+            readSuspended = true;
+            charge(true, wait);
+            ReadSuspension.suspend(ctx.channel(), ReadSuspension.TRAFFIC_SHAPING);
+            ctx.executor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    readSuspended = false;
+                    ReadSuspension.resume(ctx.channel(), ReadSuspension.TRAFFIC_SHAPING);
+                }
+            }, wait, TimeUnit.NANOSECONDS);
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        long wait = throttle(size(msg), false);
+        if(wait >= MINIMAL_WAIT) {
+            long now = System.nanoTime();
+            long resumeAt = now + wait;
+            if(resumeAt > writeResumeAt) {
+                charge(false, resumeAt - Math.max(now, writeResumeAt));
+                writeResumeAt = resumeAt;
+            }
+        }
+        ctx.write(msg, promise);
+    }
+
+    @Override
+    public void flush(final ChannelHandlerContext ctx) throws Exception {
+        long delay = writeResumeAt - System.nanoTime();
+        if(delay < MINIMAL_WAIT) {
+            ctx.flush();
+        } else if(!flushScheduled) {
+            flushScheduled = true;
+            ctx.executor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flushScheduled = false;
+                    try {
+                        flush(ctx);
+                    } catch(Exception ex) {
+                        ctx.fireExceptionCaught(ex);
+                    }
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Books the bytes on every applicable limit, returns the longest wait
+     * and remembers the limit that caused it.
+     */
+    private long throttle(long size, boolean reading) {
+        if(size <= 0) {
+            return 0;
+        }
+        RateLimiter global = reading ? shaping.getRead() : shaping.getWrite();
+        RateLimiter connection = reading ? connectionRead : connectionWrite;
+        TrafficShaping.Route route = reading ? readRoute : writeRoute;
+        RateLimiter routed = route == null ? null : (reading ? route.read : route.write);
+
+        long wait = global.acquire(size);
+        cause = global;
+        if(connection != null) {
+            long connectionWait = connection.acquire(size);
+            if(connectionWait > wait) {
+                wait = connectionWait;
+                cause = connection;
+            }
+        }
+        if(routed != null) {
+            long routeWait = routed.acquire(size);
+            if(routeWait > wait) {
+                wait = routeWait;
+                cause = routed;
+            }
+        }
+        return wait;
+    }
+
+    /**
+     * Adds the time the channel is held back to the limit behind the last
+     * wait.
+     */
+    private void charge(boolean reading, long nanos) {
+        if(cause == connectionRead || cause == connectionWrite) {
+            shaping.connectionThrottled(reading, nanos);
+        } else {
+            cause.throttled(nanos);
+        }
+    }
+
+    private static long size(Object msg) {
+        if(msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        }
+        if(msg instanceof ByteBufHolder) {
+            return ((ByteBufHolder) msg).content().readableBytes();
+        }
+        if(msg instanceof FileRegion) {
+            return ((FileRegion) msg).count();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,86 @@
+package fortress.ring.http;
+
+import io.netty.buffer.ByteBuf;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Digests of one upload, updated with every chunk before it is written.
+ */
+public class UploadDigests {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Map<String, MessageDigest> digests = new LinkedHashMap<String, MessageDigest>();
+    private final Map<String, byte[]> expected;
+    private Map<String, String> results = Collections.emptyMap();
+
+    UploadDigests(List<String> algorithms, Map<String, byte[]> expected) {
+        this.expected = expected;
+        for(String algorithm : algorithms) {
+            add(algorithm);
+        }
+        for(String algorithm : expected.keySet()) {
+            add(algorithm);
+        }
+    }
+
+    private void add(String algorithm) {
+        if(digests.containsKey(algorithm)) {
+            return;
+        }
+        try {
+            digests.put(algorithm, MessageDigest.getInstance(algorithm));
+        } catch(NoSuchAlgorithmException ex) {
+            // Announced by the client with an algorithm we do not know, not verified
+        }
+    }
+
+    /**
+     * Adds the readable bytes of the buffer, leaves its indexes alone.
+     */
+    public void update(ByteBuf buffer) {
+        for(ByteBuffer nio : buffer.nioBuffers()) {
+            for(MessageDigest digest : digests.values()) {
+                digest.update(nio.duplicate());
+            }
+        }
+    }
+
+    /**
+     * Completes the digests and checks the announced ones.
+     */
+    public void finish() throws UploadVerificationException {
+        Map<String, String> results = new LinkedHashMap<String, String>();
+        for(Map.Entry<String, MessageDigest> entry : digests.entrySet()) {
+            byte[] digest = entry.getValue().digest();
+            byte[] announced = expected.get(entry.getKey());
+            if(announced != null && !MessageDigest.isEqual(digest, announced)) {
+                throw new UploadVerificationException(entry.getKey() + " digest of the upload does not match");
+            }
+            results.put(entry.getKey(), hex(digest));
+        }
+        this.results = Collections.unmodifiableMap(results);
+    }
+
+    /**
+     * Algorithm to hex encoded digest, empty until finished.
+     */
+    public Map<String, String> getResults() {
+        return results;
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for(int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
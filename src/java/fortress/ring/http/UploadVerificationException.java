@@ -0,0 +1,15 @@
+package fortress.ring.http;
+
+import java.io.IOException;
+
+/**
+ * An upload does not match the size or digest its headers announced, it
+ * is aborted before reaching the ring handler.
+ */
+public class UploadVerificationException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public UploadVerificationException(String message) {
+        super(message);
+    }
+}
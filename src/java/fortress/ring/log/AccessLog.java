@@ -0,0 +1,242 @@
+package fortress.ring.log;
+
+import fortress.ring.metrics.MetricsSource;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log backed by a preallocated ring buffer.
+ *
+ * Event loops only copy references and numbers into a free slot once a
+ * response is written, a background thread formats the entries and writes
+ * them in batches. When the buffer is full entries are dropped and counted
+ * instead of blocking the event loop.
+ *
+ * Lines use the combined log format followed by the queue, handler and
+ * write times in microseconds.
+ */
+public class AccessLog implements MetricsSource {
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(AccessLog.class);
+    private static final int BATCH_SIZE = 256;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Entry[] entries;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final Writer writer;
+    private final Thread consumer;
+    private volatile long tail;
+    private volatile boolean running = true;
+
+    /**
+     * @param writer where the formatted lines go, closed when the log stops
+     * @param capacity entries that may wait to be written, rounded up to a
+     *        power of two
+     */
+    public AccessLog(Writer writer, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.entries = new Entry[size];
+        this.mask = size - 1;
+        for(int i = 0; i < size; i++) {
+            entries[i] = new Entry();
+        }
+        this.writer = writer;
+        this.consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, "fortress-access-log");
+        this.consumer.setDaemon(true);
+        this.consumer.start();
+    }
+
+    /**
+     * Records a finished request, never blocks. Returns false if the entry
+     * had to be dropped.
+     */
+    public boolean log(HttpRequest request, SocketAddress remote, int status, long bytes,
+                       long timestamp, long queueNanos, long handlerNanos, long writeNanos) {
+        Entry entry = claim();
+        if(entry == null) {
+            return false;
+        }
+        entry.request = request;
+        entry.remote = remote;
+        entry.status = status;
+        entry.bytes = bytes;
+        entry.timestamp = timestamp;
+        entry.queueNanos = queueNanos;
+        entry.handlerNanos = handlerNanos;
+        entry.writeNanos = writeNanos;
+        entry.published = entry.sequence;
+        return true;
+    }
+
+    /**
+     * Listener for the last write of a response, logs the request once the
+     * write completes. The slot is only claimed then, so a slow download
+     * doesn't hold back the entries of the responses finished after it.
+     */
+    public Response listener(HttpRequest request, int status, long queueNanos, long handlerNanos) {
+        return new Response(request, status, queueNanos, handlerNanos);
+    }
+
+    private Entry claim() {
+        for(;;) {
+            long sequence = head.get();
+            if(sequence - tail >= entries.length) {
+                dropped.incrementAndGet();
+                return null;
+            }
+            if(head.compareAndSet(sequence, sequence + 1)) {
+                Entry entry = entries[(int) sequence & mask];
+                entry.sequence = sequence;
+                return entry;
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void consume() {
+        SimpleDateFormat format = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+        Date date = new Date();
+        StringBuilder batch = new StringBuilder(BATCH_SIZE * 128);
+        try {
+            while(running || tail != head.get()) {
+                int count = 0;
+                long position = tail;
+                Entry entry = entries[(int) position & mask];
+                while(count < BATCH_SIZE && entry.published == position) {
+                    date.setTime(entry.timestamp);
+                    format(batch, entry, format.format(date));
+                    entry.request = null;
+                    entry.remote = null;
+                    position++;
+                    tail = position;
+                    count++;
+                    entry = entries[(int) position & mask];
+                }
+                if(count > 0) {
+                    writer.write(batch.toString());
+                    writer.flush();
+                    written.addAndGet(count);
+                    batch.setLength(0);
+                } else if(running) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        } catch(Exception ex) {
+            logger.warn("Access log stopped writing", ex);
+        } finally {
+            try {
+                writer.close();
+            } catch(Exception ex) {
+                logger.debug("Could not close access log", ex);
+            }
+        }
+    }
+
+    private static void format(StringBuilder out, Entry entry, String date) {
+        SocketAddress remote = entry.remote;
+        if(remote instanceof InetSocketAddress) {
+            out.append(((InetSocketAddress) remote).getAddress().getHostAddress());
+        } else {
+            out.append('-');
+        }
+        out.append(" - - [").append(date).append("] \"")
+           .append(entry.request.getMethod().name()).append(' ')
+           .append(entry.request.getUri()).append(' ')
+           .append(entry.request.getProtocolVersion().text()).append("\" ")
+           .append(entry.status).append(' ')
+           .append(entry.bytes).append(" \"");
+        String referer = entry.request.headers().get("Referer");
+        out.append(referer == null ? "-" : referer).append("\" \"");
+        String agent = entry.request.headers().get("User-Agent");
+        out.append(agent == null ? "-" : agent).append("\" ")
+           .append(entry.queueNanos / 1000).append(' ')
+           .append(entry.handlerNanos / 1000).append(' ')
+           .append(entry.writeNanos / 1000).append('\n');
+    }
+
+    @Override
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+        snapshot.put("written", written.get());
+        snapshot.put("dropped", dropped.get());
+        snapshot.put("pending", head.get() - tail);
+        return snapshot;
+    }
+
+    /**
+     * A response being written, the writer adds the bytes of its body as
+     * they are known so responses sharing a connection (pipelining, SPDY
+     * streams) don't count each other's bytes.
+     */
+    public final class Response implements ChannelFutureListener {
+        private final HttpRequest request;
+        private final int status;
+        private final long timestamp = System.currentTimeMillis();
+        private final long started = System.nanoTime();
+        private final long queueNanos;
+        private final long handlerNanos;
+        private long bytes;
+
+        private Response(HttpRequest request, int status, long queueNanos, long handlerNanos) {
+            this.request = request;
+            this.status = status;
+            this.queueNanos = queueNanos;
+            this.handlerNanos = handlerNanos;
+        }
+
+        public void addBytes(long count) {
+            bytes += count;
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            log(request, future.channel().remoteAddress(), status, bytes,
+                timestamp, queueNanos, handlerNanos, System.nanoTime() - started);
+        }
+    }
+
+    private static final class Entry {
+        volatile long published = -1;
+        long sequence;
+        HttpRequest request;
+        SocketAddress remote;
+        int status;
+        long bytes;
+        long timestamp;
+        long queueNanos;
+        long handlerNanos;
+        long writeNanos;
+    }
+}
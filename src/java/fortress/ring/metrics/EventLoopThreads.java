@@ -0,0 +1,165 @@
+package fortress.ring.metrics;
+
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread factory of an event loop group, names its threads after the
+ * group (i.e. fortress-http-worker-3) and reports how busy they are.
+ *
+ * Utilization is the CPU time of the group threads over the wall time
+ * elapsed between two calls to {@link #sample}, per thread, as measured by
+ * the ThreadMXBean. Sampling runs on a fixed schedule, snapshots only read
+ * the last sample so any number of readers see the same window.
+ *
+ * With affinity on, each thread takes a CPU lock from OpenHFT
+ * Java-Thread-Affinity when it starts, and its name gets the CPU it is
+ * bound to. The library is looked up reflectively. Without it, threads
+ * run unpinned.
+ */
+public class EventLoopThreads implements ThreadFactory, MetricsSource {
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(EventLoopThreads.class);
+    private static final String AFFINITY_LOCK = "net.openhft.affinity.AffinityLock";
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    private final String prefix;
+    private final Method acquireLock;
+    private final AtomicInteger index = new AtomicInteger();
+    private final List<LoopThread> threads = new CopyOnWriteArrayList<LoopThread>();
+
+    public EventLoopThreads(String prefix, boolean affinity) {
+        this.prefix = prefix;
+        this.acquireLock = affinity ? affinityMethod() : null;
+    }
+
+    private static Method affinityMethod() {
+        try {
+            return Class.forName(AFFINITY_LOCK).getMethod("acquireLock");
+        } catch(Exception ex) {
+            logger.warn("Java-Thread-Affinity is not on the classpath, event loops are not pinned");
+            return null;
+        }
+    }
+
+    @Override
+    public Thread newThread(final Runnable task) {
+        final LoopThread loop = new LoopThread();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Object lock = pin(loop);
+                try {
+                    task.run();
+                } finally {
+                    release(lock);
+                }
+            }
+        }, prefix + "-" + index.getAndIncrement());
+        loop.thread = thread;
+        threads.add(loop);
+        return thread;
+    }
+
+    private Object pin(LoopThread loop) {
+        if(acquireLock == null) {
+            return null;
+        }
+        try {
+            Object lock = acquireLock.invoke(null);
+            int cpu = (Integer) lock.getClass().getMethod("cpuId").invoke(lock);
+            if(cpu >= 0) {
+                loop.cpu = cpu;
+                Thread.currentThread().setName(Thread.currentThread().getName() + "-cpu" + cpu);
+            }
+            return lock;
+        } catch(Exception ex) {
+            logger.warn("Could not pin " + Thread.currentThread().getName() + " to a CPU", ex);
+            return null;
+        }
+    }
+
+    private static void release(Object lock) {
+        if(lock == null) {
+            return;
+        }
+        try {
+            lock.getClass().getMethod("release").invoke(lock);
+        } catch(Exception ex) {
+            logger.debug("Could not release CPU lock", ex);
+        }
+    }
+
+    /**
+     * Measures the utilization of every thread since the previous sample.
+     */
+    public synchronized void sample() {
+        if(!cpuTimeEnabled()) {
+            return;
+        }
+        long now = System.nanoTime();
+        for(LoopThread loop : threads) {
+            loop.sample(now);
+        }
+    }
+
+    private static boolean cpuTimeEnabled() {
+        return threadBean.isThreadCpuTimeSupported() && threadBean.isThreadCpuTimeEnabled();
+    }
+
+    @Override
+    public Map<String, Object> snapshot() {
+        boolean cpuTime = cpuTimeEnabled();
+        double total = 0;
+        List<Object> perThread = new ArrayList<Object>();
+        for(LoopThread loop : threads) {
+            Map<String, Object> thread = new LinkedHashMap<String, Object>();
+            thread.put("name", loop.thread.getName());
+            thread.put("cpu", loop.cpu);
+            if(cpuTime) {
+                double utilization = loop.utilization;
+                total += utilization;
+                thread.put("cpu-time-ms", loop.cpuNanos / 1000000);
+                thread.put("utilization", utilization);
+            }
+            perThread.add(thread);
+        }
+        Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+        snapshot.put("threads", threads.size());
+        snapshot.put("pinned", acquireLock != null);
+        if(cpuTime) {
+            snapshot.put("utilization", threads.isEmpty() ? 0.0 : total / threads.size());
+        }
+        snapshot.put("loops", perThread);
+        return snapshot;
+    }
+
+    private static class LoopThread {
+        private volatile Thread thread;
+        private volatile int cpu = -1;
+        private volatile long cpuNanos;
+        private volatile double utilization;
+        private long sampledAt = System.nanoTime();
+
+        void sample(long now) {
+            long cpu = threadBean.getThreadCpuTime(thread.getId());
+            if(cpu < 0) {
+                return;
+            }
+            long elapsed = now - sampledAt;
+            utilization = elapsed <= 0 ? 0 : Math.min(1.0, (double) (cpu - cpuNanos) / elapsed);
+            cpuNanos = cpu;
+            sampledAt = now;
+        }
+    }
+}
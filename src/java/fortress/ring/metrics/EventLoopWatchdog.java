@@ -0,0 +1,223 @@
+package fortress.ring.metrics;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Periodically submits a probe task to every event loop of a group and
+ * measures how long it takes to run (scheduling lag). When a probe is
+ * pending for longer than the stall threshold the loop thread stack is
+ * sampled, so blocking calls made from ring handlers, stream reads or
+ * upload writes can be traced back to the offending frame.
+ */
+public class EventLoopWatchdog implements MetricsSource {
+    private static final InternalLogger logger =
+        InternalLoggerFactory.getInstance(EventLoopWatchdog.class);
+    private static final int TOP_FRAMES = 10;
+
+    private final List<LoopProbe> probes = new ArrayList<LoopProbe>();
+    private final ConcurrentHashMap<String, AtomicLong> offenders = new ConcurrentHashMap<String, AtomicLong>();
+    private final long intervalMillis;
+    private final long thresholdNanos;
+    private ScheduledExecutorService scheduler;
+
+    public EventLoopWatchdog(Iterable<? extends EventExecutorGroup> groups, long intervalMillis, long stallThresholdMillis) {
+        this.intervalMillis = intervalMillis;
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(stallThresholdMillis);
+        for(EventExecutorGroup group : groups) {
+            for(EventExecutor loop : group) {
+                probes.add(new LoopProbe(loop));
+            }
+        }
+    }
+
+    public synchronized void start() {
+        if(scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "fortress-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if(scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Highest lag currently observed across all loops, a pending probe
+     * counts as lagging since it was submitted.
+     */
+    public long maxLagNanos() {
+        long now = System.nanoTime();
+        long max = 0;
+        for(LoopProbe probe : probes) {
+            max = Math.max(max, probe.currentLag(now));
+        }
+        return max;
+    }
+
+    private void check() {
+        long now = System.nanoTime();
+        for(LoopProbe probe : probes) {
+            try {
+                probe.check(now);
+            } catch(Exception ex) {
+                logger.debug("Could not probe event loop", ex);
+            }
+        }
+    }
+
+    private void recordStall(LoopProbe probe, StackTraceElement[] stack, boolean firstSample) {
+        if(stack.length == 0) {
+            return;
+        }
+        String frame = offendingFrame(stack).toString();
+        AtomicLong count = offenders.get(frame);
+        if(count == null) {
+            count = new AtomicLong();
+            AtomicLong existing = offenders.putIfAbsent(frame, count);
+            if(existing != null) {
+                count = existing;
+            }
+        }
+        count.incrementAndGet();
+        if(firstSample && logger.isWarnEnabled()) {
+            StringBuilder trace = new StringBuilder();
+            for(StackTraceElement element : stack) {
+                trace.append("\n\tat ").append(element);
+            }
+            logger.warn("Event loop " + probe.threadName() + " stalled for more than " +
+                        TimeUnit.NANOSECONDS.toMillis(thresholdNanos) + "ms" + trace);
+        }
+    }
+
+    /**
+     * First frame that does not belong to the JDK or netty, which is
+     * usually the application code that issued the blocking call.
+     */
+    static StackTraceElement offendingFrame(StackTraceElement[] stack) {
+        for(StackTraceElement element : stack) {
+            String className = element.getClassName();
+            if(!className.startsWith("java.") && !className.startsWith("javax.") &&
+               !className.startsWith("sun.") && !className.startsWith("jdk.") &&
+               !className.startsWith("io.netty.") && !className.startsWith("clojure.")) {
+                return element;
+            }
+        }
+        return stack[0];
+    }
+
+    @Override
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+        long now = System.nanoTime();
+        Map<String, Object> loops = new LinkedHashMap<String, Object>();
+        for(LoopProbe probe : probes) {
+            Map<String, Object> loop = probe.lag.snapshot(1000);
+            loop.put("current-lag", probe.currentLag(now) / 1000);
+            loop.put("stalls", probe.stalls.get());
+            loops.put(probe.threadName(), loop);
+        }
+        snapshot.put("lag-us", loops);
+
+        List<Map.Entry<String, AtomicLong>> entries = new ArrayList<Map.Entry<String, AtomicLong>>(offenders.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, AtomicLong>>() {
+            @Override
+            public int compare(Map.Entry<String, AtomicLong> a, Map.Entry<String, AtomicLong> b) {
+                long x = a.getValue().get();
+                long y = b.getValue().get();
+                return x < y ? 1 : (x == y ? 0 : -1);
+            }
+        });
+        Map<String, Object> top = new LinkedHashMap<String, Object>();
+        for(Map.Entry<String, AtomicLong> entry : entries.subList(0, Math.min(TOP_FRAMES, entries.size()))) {
+            top.put(entry.getKey(), entry.getValue().get());
+        }
+        snapshot.put("top-stalled-frames", top);
+        return snapshot;
+    }
+
+    private class LoopProbe implements Runnable {
+        private final EventExecutor loop;
+        private final Histogram lag = new Histogram();
+        private final AtomicLong stalls = new AtomicLong();
+        private volatile Thread thread;
+        private volatile long submitted;
+        private volatile long lastLag;
+        private boolean stalled;
+
+        LoopProbe(EventExecutor loop) {
+            this.loop = loop;
+        }
+
+        String threadName() {
+            Thread t = thread;
+            return t == null ? loop.toString() : t.getName();
+        }
+
+        long currentLag(long now) {
+            long pending = submitted;
+            return pending == 0 ? lastLag : Math.max(lastLag, now - pending);
+        }
+
+        // Runs in the event loop
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            long elapsed = System.nanoTime() - submitted;
+            lastLag = elapsed;
+            lag.record(elapsed);
+            submitted = 0;
+        }
+
+        // Runs in the watchdog thread
+        void check(long now) {
+            long pending = submitted;
+            if(pending == 0) {
+                if(loop.isShuttingDown()) {
+                    return;
+                }
+                stalled = false;
+                submitted = now;
+                loop.execute(this);
+            } else if(now - pending > thresholdNanos && thread != null) {
+                boolean firstSample = !stalled;
+                if(firstSample) {
+                    stalled = true;
+                    stalls.incrementAndGet();
+                }
+                recordStall(this, thread.getStackTrace(), firstSample);
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package fortress.ring.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free log-linear histogram in the spirit of HdrHistogram.
+ *
+ * Values are bucketed by their most significant bit and then split in
+ * 2^SUB_BITS linear sub buckets, which keeps the relative error under 4%
+ * for any recorded value. Recording is a single atomic increment so it can
+ * be used from every event loop thread at once.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int SUB_MASK = SUB_COUNT - 1;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    static int index(long value) {
+        if(value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        int sub = (int) (value >>> shift) & SUB_MASK;
+        return ((shift + 1) << SUB_BITS) + sub;
+    }
+
+    static long lowerBound(int index) {
+        int bucket = index >>> SUB_BITS;
+        long sub = index & SUB_MASK;
+        if(bucket == 0) {
+            return sub;
+        }
+        return (SUB_COUNT + sub) << (bucket - 1);
+    }
+
+    public void record(long value) {
+        if(value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current = max.get();
+        while(value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long c = count.get();
+        return c == 0 ? 0 : (double) sum.get() / c;
+    }
+
+    /**
+     * Returns the lower bound of the bucket holding the given percentile,
+     * percentile goes from 0 to 100.
+     */
+    public long percentile(double percentile) {
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if(total == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if(seen >= Math.max(target, 1)) {
+                return Math.min(lowerBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Summary of the recorded values, divided by scale (use 1000 to
+     * report nanoseconds as microseconds).
+     */
+    public Map<String, Object> snapshot(long scale) {
+        Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+        snapshot.put("count", getCount());
+        snapshot.put("mean", getMean() / scale);
+        snapshot.put("p50", percentile(50) / scale);
+        snapshot.put("p90", percentile(90) / scale);
+        snapshot.put("p99", percentile(99) / scale);
+        snapshot.put("p999", percentile(99.9) / scale);
+        snapshot.put("max", getMax() / scale);
+        return snapshot;
+    }
+}
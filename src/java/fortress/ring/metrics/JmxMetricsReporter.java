@@ -0,0 +1,144 @@
+package fortress.ring.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Exposes the metrics snapshot as a read only dynamic MBean, nested
+ * sections are flattened with dots (latency.handler-us.p99).
+ *
+ * The snapshot is taken at most once per refresh interval and shared by
+ * every attribute read in between.
+ */
+public class JmxMetricsReporter implements MetricsReporter, DynamicMBean {
+    private final String objectName;
+    private final long refreshNanos;
+    private ServerMetrics metrics;
+    private ObjectName registeredName;
+    private Map<String, Object> cached;
+    private long cachedAt;
+
+    public JmxMetricsReporter(String objectName) {
+        this(objectName, 1000);
+    }
+
+    /**
+     * @param refreshMillis how long a snapshot answers attribute reads
+     */
+    public JmxMetricsReporter(String objectName, long refreshMillis) {
+        this.objectName = objectName;
+        this.refreshNanos = TimeUnit.MILLISECONDS.toNanos(refreshMillis);
+    }
+
+    @Override
+    public void start(ServerMetrics metrics) {
+        this.metrics = metrics;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            registeredName = new ObjectName(objectName);
+            server.registerMBean(this, registeredName);
+        } catch(Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if(registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch(Exception ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            registeredName = null;
+        }
+    }
+
+    private synchronized Map<String, Object> flatSnapshot() {
+        long now = System.nanoTime();
+        if(cached == null || now - cachedAt >= refreshNanos) {
+            Map<String, Object> flat = new LinkedHashMap<String, Object>();
+            flatten("", metrics.snapshot(), flat);
+            cached = flat;
+            cachedAt = now;
+        }
+        return cached;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void flatten(String prefix, Map<String, Object> map, Map<String, Object> flat) {
+        for(Map.Entry<String, Object> entry : map.entrySet()) {
+            Object value = entry.getValue();
+            if(value instanceof Map) {
+                flatten(prefix + entry.getKey() + ".", (Map<String, Object>) value, flat);
+            } else if(value instanceof Number) {
+                flat.put(prefix + entry.getKey(), value);
+            }
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Object value = flatSnapshot().get(attribute);
+        if(value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Object> flat = flatSnapshot();
+        AttributeList list = new AttributeList();
+        for(String attribute : attributes) {
+            if(flat.containsKey(attribute)) {
+                list.add(new Attribute(attribute, flat.get(attribute)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for(Map.Entry<String, Object> entry : flatSnapshot().entrySet()) {
+            attributes.add(new MBeanAttributeInfo(entry.getKey(),
+                                                  entry.getValue().getClass().getName(),
+                                                  entry.getKey(),
+                                                  true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(),
+                             "Fortress server metrics",
+                             attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                             null, null, null);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) {
+        throw new UnsupportedOperationException("Fortress metrics are read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+}
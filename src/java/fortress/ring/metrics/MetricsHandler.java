@@ -0,0 +1,145 @@
+package fortress.ring.metrics;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.AttributeKey;
+
+/**
+ * First handler of every pipeline, counts the bytes that go through the
+ * connection and remembers when the current request started to arrive.
+ *
+ * A request starts when its head is decoded, so TLS handshakes and SPDY
+ * control frames don't count as requests being received.
+ *
+ * One instance per channel, state is only touched from its event loop.
+ */
+public class MetricsHandler extends ChannelDuplexHandler {
+    private static final AttributeKey<MetricsHandler> KEY = new AttributeKey<MetricsHandler>("fortress.metrics");
+
+    /**
+     * Goes right after the http codec, marks the start of each request.
+     */
+    public static final ChannelHandler REQUEST_HEADS = new RequestHeads();
+
+    private final ServerMetrics metrics;
+    private long bytesIn;
+    private long bytesOut;
+    private volatile long requestStarted;
+
+    public MetricsHandler(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public static MetricsHandler get(Channel channel) {
+        return channel.attr(KEY).get();
+    }
+
+    /**
+     * Called when a request is handed to the ring handler, returns the
+     * nanoseconds elapsed since its head was decoded.
+     */
+    public static long requestDispatched(Channel channel, long now) {
+        MetricsHandler handler = get(channel);
+        if(handler == null || handler.requestStarted == 0) {
+            return 0;
+        }
+        long queued = now - handler.requestStarted;
+        handler.requestStarted = 0;
+        return queued;
+    }
+
+    /**
+     * Called when the head of a request has been decoded, the first one
+     * pending dispatch sets the start.
+     */
+    public static void requestReceived(Channel channel) {
+        MetricsHandler handler = get(channel);
+        if(handler != null && handler.requestStarted == 0) {
+            handler.requestStarted = System.nanoTime();
+        }
+    }
+
+    /**
+     * True when part of a request has arrived but it has not been handed
+     * to the ring handler yet (i.e. a body is still being uploaded).
+     */
+    public boolean isReceiving() {
+        return requestStarted != 0;
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        ctx.channel().attr(KEY).set(this);
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        metrics.connectionOpened();
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        metrics.connectionClosed();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        long size = size(msg);
+        if(size > 0) {
+            bytesIn += size;
+            metrics.bytesRead(size);
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        long size = size(msg);
+        bytesOut += size;
+        metrics.bytesWritten(size);
+        ctx.write(msg, promise);
+    }
+
+    private static long size(Object msg) {
+        if(msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        }
+        if(msg instanceof ByteBufHolder) {
+            return ((ByteBufHolder) msg).content().readableBytes();
+        }
+        if(msg instanceof FileRegion) {
+            return ((FileRegion) msg).count();
+        }
+        return 0;
+    }
+
+    @Sharable
+    private static final class RequestHeads extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if(msg instanceof HttpRequest) {
+                requestReceived(ctx.channel());
+            }
+            ctx.fireChannelRead(msg);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package fortress.ring.metrics;
+
+/**
+ * Publishes {@link ServerMetrics} somewhere (JMX, a log, a push gateway).
+ * Reporters are started when the server starts and stopped with it.
+ */
+public interface MetricsReporter {
+    public void start(ServerMetrics metrics);
+    public void stop();
+}
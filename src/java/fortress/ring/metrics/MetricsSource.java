@@ -0,0 +1,10 @@
+package fortress.ring.metrics;
+
+import java.util.Map;
+
+/**
+ * Anything that can contribute a section to the server metrics snapshot.
+ */
+public interface MetricsSource {
+    public Map<String, Object> snapshot();
+}
@@ -0,0 +1,174 @@
+package fortress.ring.metrics;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Server wide counters and latency histograms. Everything is recorded with
+ * atomic operations so event loop threads never block on each other.
+ *
+ * Latencies are split in three phases:
+ *   queue   - from the decoded head of the request until the handler runs
+ *   handler - time spent inside the ring handler
+ *   write   - from the start of the write until the write future completes
+ *
+ * A connection tracks one start mark at a time, so a pipelined request
+ * whose head was decoded while an earlier one was still waiting records
+ * no queue time of its own and undercounts its wait.
+ */
+public class ServerMetrics {
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failedRequests = new AtomicLong();
+    private final AtomicLong inFlight = new AtomicLong();
+    private final AtomicLongArray statusClasses = new AtomicLongArray(6);
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong uploadsStarted = new AtomicLong();
+    private final AtomicLong uploadsFinished = new AtomicLong();
+    private final AtomicLong uploadBytes = new AtomicLong();
+    private final AtomicLong spdyStreams = new AtomicLong();
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong openConnections = new AtomicLong();
+
+    private final Histogram queueLatency = new Histogram();
+    private final Histogram handlerLatency = new Histogram();
+    private final Histogram writeLatency = new Histogram();
+    private final Histogram uploadSizes = new Histogram();
+
+    private final Map<String, MetricsSource> sources = new ConcurrentHashMap<String, MetricsSource>();
+
+    public void register(String name, MetricsSource source) {
+        sources.put(name, source);
+    }
+
+    public void unregister(String name) {
+        sources.remove(name);
+    }
+
+    public void connectionOpened() {
+        connections.incrementAndGet();
+        openConnections.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        openConnections.decrementAndGet();
+    }
+
+    public void bytesRead(long count) {
+        bytesIn.addAndGet(count);
+    }
+
+    public void bytesWritten(long count) {
+        bytesOut.addAndGet(count);
+    }
+
+    public void requestStarted(boolean spdy, long queueNanos) {
+        requests.incrementAndGet();
+        inFlight.incrementAndGet();
+        if(spdy) {
+            spdyStreams.incrementAndGet();
+        }
+        queueLatency.record(queueNanos);
+    }
+
+    /**
+     * Counts a handler that threw, its error response is recorded by
+     * {@link #completionListener} as any other.
+     */
+    public void requestFailed() {
+        failedRequests.incrementAndGet();
+    }
+
+    public void requestCompleted(int status, long handlerNanos, long writeNanos) {
+        int statusClass = status / 100;
+        statusClasses.incrementAndGet(statusClass > 0 && statusClass < 6 ? statusClass : 0);
+        handlerLatency.record(handlerNanos);
+        writeLatency.record(writeNanos);
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Listener to be added to the last write future of a response, it
+     * records the write phase and closes the request bookkeeping.
+     */
+    public ChannelFutureListener completionListener(final int status, final long handlerNanos) {
+        final long writeStarted = System.nanoTime();
+        return new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                requestCompleted(status, handlerNanos, System.nanoTime() - writeStarted);
+            }
+        };
+    }
+
+    public void uploadStarted() {
+        uploadsStarted.incrementAndGet();
+    }
+
+    public void uploadBytes(long count) {
+        uploadBytes.addAndGet(count);
+    }
+
+    public void uploadFinished(long size) {
+        uploadsFinished.incrementAndGet();
+        uploadSizes.record(size);
+    }
+
+    public long getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getActiveUploads() {
+        return uploadsStarted.get() - uploadsFinished.get();
+    }
+
+    public long getOpenConnections() {
+        return openConnections.get();
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+        snapshot.put("requests", requests.get());
+        snapshot.put("failed-requests", failedRequests.get());
+        snapshot.put("in-flight", inFlight.get());
+
+        Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("1xx", statusClasses.get(1));
+        status.put("2xx", statusClasses.get(2));
+        status.put("3xx", statusClasses.get(3));
+        status.put("4xx", statusClasses.get(4));
+        status.put("5xx", statusClasses.get(5));
+        status.put("other", statusClasses.get(0));
+        snapshot.put("status", status);
+
+        snapshot.put("bytes-in", bytesIn.get());
+        snapshot.put("bytes-out", bytesOut.get());
+        snapshot.put("connections", connections.get());
+        snapshot.put("open-connections", openConnections.get());
+        snapshot.put("spdy-streams", spdyStreams.get());
+
+        Map<String, Object> uploads = new LinkedHashMap<String, Object>();
+        uploads.put("started", uploadsStarted.get());
+        uploads.put("finished", uploadsFinished.get());
+        uploads.put("bytes", uploadBytes.get());
+        uploads.put("size", uploadSizes.snapshot(1));
+        snapshot.put("uploads", uploads);
+
+        Map<String, Object> latency = new LinkedHashMap<String, Object>();
+        latency.put("queue-us", queueLatency.snapshot(1000));
+        latency.put("handler-us", handlerLatency.snapshot(1000));
+        latency.put("write-us", writeLatency.snapshot(1000));
+        snapshot.put("latency", latency);
+
+        for(Map.Entry<String, MetricsSource> source : sources.entrySet()) {
+            snapshot.put(source.getKey(), source.getValue().snapshot());
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,72 @@
+package fortress.ring.metrics;
+
+import io.netty.channel.Channel;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Handshake counts and latency of the secure port.
+ *
+ * A handshake counts as resumed when its session was created before the
+ * handshake started, which is how both the JDK and OpenSSL engines look
+ * after an abbreviated handshake. Latency goes from the connection being
+ * set up to the handshake completing.
+ */
+public class TlsMetrics implements MetricsSource {
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Histogram latency = new Histogram();
+    private volatile String engine = "jdk";
+
+    public void setEngine(String engine) {
+        this.engine = engine;
+    }
+
+    public GenericFutureListener<Future<Channel>> handshakeListener(final SSLEngine sslEngine, final long started) {
+        final long startedMillis = System.currentTimeMillis();
+        return new GenericFutureListener<Future<Channel>>() {
+            @Override
+            public void operationComplete(Future<Channel> future) {
+                if(!future.isSuccess()) {
+                    failed.incrementAndGet();
+                    return;
+                }
+                latency.record(System.nanoTime() - started);
+                handshakes.incrementAndGet();
+                SSLSession session = sslEngine.getSession();
+                if(session != null && session.getCreationTime() < startedMillis) {
+                    resumed.incrementAndGet();
+                }
+            }
+        };
+    }
+
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    public long getResumed() {
+        return resumed.get();
+    }
+
+    @Override
+    public Map<String, Object> snapshot() {
+        long total = handshakes.get();
+        long resumedTotal = resumed.get();
+        Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+        snapshot.put("engine", engine);
+        snapshot.put("handshakes", total);
+        snapshot.put("resumed", resumedTotal);
+        snapshot.put("failed", failed.get());
+        snapshot.put("resumption-rate", total == 0 ? 0.0 : (double) resumedTotal / total);
+        snapshot.put("handshake-latency-us", latency.snapshot(1000));
+        return snapshot;
+    }
+}
@@ -0,0 +1,45 @@
+package fortress.ring.metrics;
+
+import fortress.ring.http.MultipartProgressListener;
+import io.netty.handler.codec.http.HttpRequest;
+
+/**
+ * Records upload metrics and forwards the events to the user supplied
+ * listener, if any.
+ */
+public class UploadMetricsListener implements MultipartProgressListener {
+    private final ServerMetrics metrics;
+    private final MultipartProgressListener delegate;
+    private long size;
+
+    public UploadMetricsListener(ServerMetrics metrics, MultipartProgressListener delegate) {
+        this.metrics = metrics;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void uploadStarted(HttpRequest request) {
+        size = 0;
+        metrics.uploadStarted();
+        if(delegate != null) {
+            delegate.uploadStarted(request);
+        }
+    }
+
+    @Override
+    public void bytesWritten(long byteCount) {
+        size += byteCount;
+        metrics.uploadBytes(byteCount);
+        if(delegate != null) {
+            delegate.bytesWritten(byteCount);
+        }
+    }
+
+    @Override
+    public void uploadFinished() {
+        metrics.uploadFinished(size);
+        if(delegate != null) {
+            delegate.uploadFinished();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package fortress.util;
+
+import clojure.lang.AMapEntry;
+import clojure.lang.APersistentMap;
+import clojure.lang.IFn;
+import clojure.lang.IMapEntry;
+import clojure.lang.IObj;
+import clojure.lang.IPersistentCollection;
+import clojure.lang.IPersistentMap;
+import clojure.lang.ISeq;
+import clojure.lang.PersistentArrayMap;
+import clojure.lang.RT;
+import clojure.lang.Util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent map some of whose values are only computed, once, when they
+ * are first looked up. Used for the parts of a ring request that are
+ * costly to build and often unused.
+ *
+ * Values assoc'ed later are stored as they are.
+ *
+ * Walking the map (seq, iteration) does not compute anything, the value of
+ * an entry is computed when it is read. Anything reading every value, such
+ * as into, pr-str or a request logger, computes them all, and gets any
+ * exception they throw, i.e. BadRequestException for malformed params.
+ */
+public class LazyMap extends APersistentMap implements IObj {
+    private static final long serialVersionUID = 1L;
+
+    private final IPersistentMap map;
+    private final IPersistentMap meta;
+
+    /**
+     * @param values plain values
+     * @param lazyValues keys to no argument functions computing their value
+     */
+    public static LazyMap create(IPersistentMap values, IPersistentMap lazyValues) {
+        IPersistentMap map = values;
+        for(ISeq entries = RT.seq(lazyValues); entries != null; entries = entries.next()) {
+            IMapEntry entry = (IMapEntry) entries.first();
+            map = map.assoc(entry.key(), new Lazy((IFn) entry.val()));
+        }
+        return new LazyMap(map, null);
+    }
+
+    private LazyMap(IPersistentMap map, IPersistentMap meta) {
+        this.map = map;
+        this.meta = meta;
+    }
+
+    private static Object force(Object value) {
+        return value instanceof Lazy ? ((Lazy) value).get() : value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return map.containsKey(key);
+    }
+
+    @Override
+    public IMapEntry entryAt(Object key) {
+        IMapEntry entry = map.entryAt(key);
+        return entry == null ? null : new LazyEntry(entry.key(), entry.val());
+    }
+
+    @Override
+    public IPersistentMap assoc(Object key, Object value) {
+        return new LazyMap(map.assoc(key, value), meta);
+    }
+
+    @Override
+    public IPersistentMap assocEx(Object key, Object value) {
+        if(map.containsKey(key)) {
+            throw Util.runtimeException("Key already present");
+        }
+        return assoc(key, value);
+    }
+
+    @Override
+    public IPersistentMap without(Object key) {
+        return new LazyMap(map.without(key), meta);
+    }
+
+    @Override
+    public Object valAt(Object key) {
+        return force(map.valAt(key));
+    }
+
+    @Override
+    public Object valAt(Object key, Object notFound) {
+        return force(map.valAt(key, notFound));
+    }
+
+    @Override
+    public int count() {
+        return map.count();
+    }
+
+    @Override
+    public IPersistentCollection empty() {
+        return (IPersistentCollection) PersistentArrayMap.EMPTY.withMeta(meta);
+    }
+
+    @Override
+    public ISeq seq() {
+        List<Object> entries = new ArrayList<Object>(map.count());
+        for(ISeq seq = map.seq(); seq != null; seq = seq.next()) {
+            IMapEntry entry = (IMapEntry) seq.first();
+            entries.add(new LazyEntry(entry.key(), entry.val()));
+        }
+        return RT.seq(entries);
+    }
+
+    @Override
+    public Iterator<Map.Entry<Object, Object>> iterator() {
+        final Iterator<?> entries = ((Iterable<?>) map).iterator();
+        return new Iterator<Map.Entry<Object, Object>>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public Map.Entry<Object, Object> next() {
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>) entries.next();
+                return new LazyEntry(entry.getKey(), entry.getValue());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public IObj withMeta(IPersistentMap meta) {
+        return new LazyMap(map, meta);
+    }
+
+    @Override
+    public IPersistentMap meta() {
+        return meta;
+    }
+
+    /**
+     * Entry computing its value when it is read.
+     */
+    private static final class LazyEntry extends AMapEntry {
+        private static final long serialVersionUID = 1L;
+
+        private final Object key;
+        private final Object value;
+
+        LazyEntry(Object key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public Object key() {
+            return key;
+        }
+
+        @Override
+        public Object val() {
+            return force(value);
+        }
+
+        @Override
+        public Object getKey() {
+            return key();
+        }
+
+        @Override
+        public Object getValue() {
+            return val();
+        }
+    }
+
+    private static final class Lazy {
+        private IFn fn;
+        private Object value;
+
+        Lazy(IFn fn) {
+            this.fn = fn;
+        }
+
+        synchronized Object get() {
+            if(fn != null) {
+                value = fn.invoke();
+                fn = null;
+            }
+            return value;
+        }
+    }
+}
@@ -32,6 +32,12 @@ import io.netty.handler.codec.http.HttpVersion;
 
 import fortress.ring.http.DiskHttpWrapper;
 import fortress.ring.http.MultipartProgressListener;
+import fortress.ring.http.SpillFile;
+import fortress.ring.http.TempDirectories;
+import fortress.ring.http.DigestPolicy;
+import fortress.ring.http.TempSpaceExhaustedException;
+import fortress.ring.http.UploadVerificationException;
+import fortress.ring.metrics.MetricsHandler;
 
 import clojure.lang.IFn;
 
@@ -40,7 +46,6 @@ import java.util.List;
 import java.util.Map;
 
 import java.io.File;
-import java.io.FileOutputStream;
 
 /**
  * Decodes {@link SpdySynStreamFrame}s, {@link SpdySynReplyFrame}s,
@@ -52,7 +57,8 @@ public class InstrumentedSpdyHttpDecoder extends MessageToMessageDecoder<SpdyFra
     private final int maxContentLength;
     private final Map<Integer, FullHttpMessage> messageMap;
     private final Map<Integer, MultipartMessageWrapper> wrapperMap;
-    private File tempDirectory;
+    private TempDirectories tempDirectories;
+    private DigestPolicy digestPolicy = DigestPolicy.NONE;
     private IFn listenerBuilder;
 
     /**
@@ -63,8 +69,17 @@ public class InstrumentedSpdyHttpDecoder extends MessageToMessageDecoder<SpdyFra
      *        If the length of the message content exceeds this value,
      *        a {@link TooLongFrameException} will be raised.
      */
+    public InstrumentedSpdyHttpDecoder(int version, int maxContentLength, TempDirectories tempDirectories, IFn listenerBuilder) {
+        this(version, maxContentLength, tempDirectories, new HashMap<Integer, FullHttpMessage>(), new HashMap<Integer, MultipartMessageWrapper>(), listenerBuilder);
+    }
+
+    public InstrumentedSpdyHttpDecoder(int version, int maxContentLength, TempDirectories tempDirectories, DigestPolicy digestPolicy, IFn listenerBuilder) {
+        this(version, maxContentLength, tempDirectories, listenerBuilder);
+        this.digestPolicy = digestPolicy;
+    }
+
     public InstrumentedSpdyHttpDecoder(int version, int maxContentLength, File tempDirectory, IFn listenerBuilder) {
-        this(version, maxContentLength, tempDirectory, new HashMap<Integer, FullHttpMessage>(), new HashMap<Integer, MultipartMessageWrapper>(), listenerBuilder);
+        this(version, maxContentLength, new TempDirectories(tempDirectory), listenerBuilder);
     }
 
     /**
@@ -76,7 +91,7 @@ public class InstrumentedSpdyHttpDecoder extends MessageToMessageDecoder<SpdyFra
      *        a {@link TooLongFrameException} will be raised.
      * @param messageMap the {@link Map} used to hold partially received messages.
      */
-    protected InstrumentedSpdyHttpDecoder(int version, int maxContentLength, File tempDirectory, Map<Integer, FullHttpMessage> messageMap, Map<Integer, MultipartMessageWrapper> wrapperMap, IFn listenerBuilder) {
+    protected InstrumentedSpdyHttpDecoder(int version, int maxContentLength, TempDirectories tempDirectories, Map<Integer, FullHttpMessage> messageMap, Map<Integer, MultipartMessageWrapper> wrapperMap, IFn listenerBuilder) {
         if (version < SpdyConstants.SPDY_MIN_VERSION || version > SpdyConstants.SPDY_MAX_VERSION) {
             throw new IllegalArgumentException(
                     "unsupported version: " + version);
@@ -87,7 +102,7 @@ public class InstrumentedSpdyHttpDecoder extends MessageToMessageDecoder<SpdyFra
         }
         spdyVersion = version;
         this.maxContentLength = maxContentLength;
-        this.tempDirectory = tempDirectory;
+        this.tempDirectories = tempDirectories;
         this.messageMap = messageMap;
         this.wrapperMap = wrapperMap;
         this.listenerBuilder = listenerBuilder;
@@ -185,6 +200,7 @@ public class InstrumentedSpdyHttpDecoder extends MessageToMessageDecoder<SpdyFra
                     return;
                 }
 
+                MetricsHandler.requestReceived(ctx.channel());
                 try {
                     FullHttpRequest httpRequestWithEntity = createHttpRequest(spdyVersion, spdySynStreamFrame);
 
@@ -201,6 +217,10 @@ public class InstrumentedSpdyHttpDecoder extends MessageToMessageDecoder<SpdyFra
                             processMultipartStart(streamId, httpRequestWithEntity);
                         }
                     }
+                } catch (TempSpaceExhaustedException e) {
+                    // No room to spill the upload to, refuse it
+                    removeMessage(streamId);
+                    reply(ctx, streamId, HttpResponseStatus.INSUFFICIENT_STORAGE);
                 } catch (Exception e) {
                     // If a client sends a SYN_STREAM without all of the getMethod, url (host and path),
                     // scheme, and version headers the server must reply with a HTTP 400 BAD REQUEST reply.
@@ -308,19 +328,27 @@ public class InstrumentedSpdyHttpDecoder extends MessageToMessageDecoder<SpdyFra
                     out.add(fullHttpMessage);
                 }
             } else {
-                spdyDataFrame.content().readBytes(wrapper.getOutputStream(), length);
-
-                if (spdyDataFrame.isLast()) {
-                    FullHttpRequest fullRequest = (FullHttpRequest)fullHttpMessage;
-                    DefaultHttpRequest request = new DefaultHttpRequest(fullRequest.getProtocolVersion(),
-                            fullRequest.getMethod(),
-                            fullRequest.getUri());
-                    request.headers().add(fullHttpMessage.headers());
-                    request.headers().add("X-Scheme", "https");
-                    wrapper.getOutputStream().close();
-                    HttpHeaders.setContentLength(request, wrapper.getTmpFile().length());
+                try {
+                    wrapper.getSpillFile().write(spdyDataFrame.content());
+
+                    if (spdyDataFrame.isLast()) {
+                        FullHttpRequest fullRequest = (FullHttpRequest)fullHttpMessage;
+                        DefaultHttpRequest request = new DefaultHttpRequest(fullRequest.getProtocolVersion(),
+                                fullRequest.getMethod(),
+                                fullRequest.getUri());
+                        request.headers().add(fullHttpMessage.headers());
+                        request.headers().add("X-Scheme", "https");
+                        wrapper.getSpillFile().finish();
+                        HttpHeaders.setContentLength(request, wrapper.getTmpFile().length());
+                        removeMessage(streamId);
+                        out.add(new DiskHttpWrapper(request, wrapper.getTmpFile(), wrapper.getSpillFile().getDigests()));
+                    }
+                } catch (UploadVerificationException ex) {
+                    // The upload does not match its headers, a bad request as on http
+                    abortUpload(wrapper);
                     removeMessage(streamId);
-                    out.add(new DiskHttpWrapper(request, wrapper.getTmpFile()));
+                    reply(ctx, streamId, HttpResponseStatus.BAD_REQUEST);
+                    return;
                 }
             }
 
@@ -337,10 +365,40 @@ public class InstrumentedSpdyHttpDecoder extends MessageToMessageDecoder<SpdyFra
 
             SpdyRstStreamFrame spdyRstStreamFrame = (SpdyRstStreamFrame) msg;
             int streamId = spdyRstStreamFrame.getStreamId();
+            abortUpload(wrapperMap.get(streamId));
             removeMessage(streamId);
         }
     }
 
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        for (MultipartMessageWrapper wrapper : wrapperMap.values()) {
+            abortUpload(wrapper);
+        }
+        wrapperMap.clear();
+        super.channelInactive(ctx);
+    }
+
+    /**
+     * Answers a request stream with a status and no body.
+     */
+    private void reply(ChannelHandlerContext ctx, int streamId, HttpResponseStatus status) {
+        SpdySynReplyFrame spdySynReplyFrame = new DefaultSpdySynReplyFrame(streamId);
+        spdySynReplyFrame.setLast(true);
+        SpdyHeaders.setStatus(spdyVersion, spdySynReplyFrame, status);
+        SpdyHeaders.setVersion(spdyVersion, spdySynReplyFrame, HttpVersion.HTTP_1_0);
+        ctx.writeAndFlush(spdySynReplyFrame);
+    }
+
+    private static void abortUpload(MultipartMessageWrapper wrapper) {
+        if (wrapper != null && wrapper.getSpillFile() != null) {
+            wrapper.getSpillFile().abort();
+            if (wrapper.getProgressListener() != null) {
+                wrapper.getProgressListener().uploadFinished();
+            }
+        }
+    }
+
     private static FullHttpRequest createHttpRequest(int spdyVersion, SpdyHeadersFrame requestFrame)
         throws Exception {
         // Create the first line of the request from the name/value pairs
@@ -401,37 +459,28 @@ public class InstrumentedSpdyHttpDecoder extends MessageToMessageDecoder<SpdyFra
         return res;
     }
 
-    private void processMultipartStart(Integer streamId, FullHttpRequest req) {
+    private void processMultipartStart(Integer streamId, FullHttpRequest req) throws TempSpaceExhaustedException {
         long contentLength = HttpHeaders.getContentLength(req);
         boolean fileBasedUpload = contentLength > maxContentLength;
-        File tmpFile = null;
-        FileOutputStream outputStream = null;
+        SpillFile spillFile = null;
         MultipartMessageWrapper wrapper;
         MultipartProgressListener listener = null;
-        if(listenerBuilder != null) { 
-            listener = (MultipartProgressListener) listenerBuilder.invoke();
-            listener.uploadStarted(req);
-        }
         if(fileBasedUpload) {
             try {
-                tmpFile = createFile();
-                outputStream = new FileOutputStream(tmpFile);
+                spillFile = tempDirectories.create(contentLength, digestPolicy.start(req));
+            } catch(TempSpaceExhaustedException ex) {
+                throw ex;
             } catch(Exception ex) {
                 throw new RuntimeException(ex);
             }
         }
-        wrapper = new MultipartMessageWrapper(tmpFile, outputStream, listener, fileBasedUpload);
+        if(listenerBuilder != null) { 
+            listener = (MultipartProgressListener) listenerBuilder.invoke();
+            listener.uploadStarted(req);
+        }
+        wrapper = new MultipartMessageWrapper(spillFile, listener, fileBasedUpload);
         wrapperMap.put(streamId, wrapper);
     }
 
-    private File createFile() {
-        try {
-            File f = File.createTempFile("fortress", ".multipart", tempDirectory);
-            f.deleteOnExit();
-            return f;
-        } catch(Exception ex) {
-            throw new RuntimeException(ex);
-        }
-    }
 }
 
@@ -1,28 +1,26 @@
 package io.netty.handler.codec.spdy;
 
 import fortress.ring.http.MultipartProgressListener;
+import fortress.ring.http.SpillFile;
 import java.io.File;
-import java.io.FileOutputStream;
 
 public class MultipartMessageWrapper {
-    private File tmpFile;
-    private FileOutputStream outputStream;
+    private SpillFile spillFile;
     private MultipartProgressListener progressListener;
     private boolean fileBasedUpload;
 
-    public MultipartMessageWrapper(File tmpFile, FileOutputStream outputStream, MultipartProgressListener progressListener, boolean fileBasedUpload) {
-        this.tmpFile = tmpFile;
-        this.outputStream = outputStream;
+    public MultipartMessageWrapper(SpillFile spillFile, MultipartProgressListener progressListener, boolean fileBasedUpload) {
+        this.spillFile = spillFile;
         this.progressListener = progressListener;
         this.fileBasedUpload = fileBasedUpload;
     }
 
     public File getTmpFile() {
-        return tmpFile;
+        return spillFile.getFile();
     }
 
-    public FileOutputStream getOutputStream() {
-        return outputStream;
+    public SpillFile getSpillFile() {
+        return spillFile;
     }
 
     public MultipartProgressListener getProgressListener() {
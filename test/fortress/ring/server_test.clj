@@ -6,7 +6,15 @@
   (:require [clj-http.client :as client]
             [compojure.route :as route]
             [clojure.java.io :as io]
-            [ring.util.response :as response]))
+            [clojure.string :as string]
+            [ring.util.response :as response])
+  (:import [fortress.ring.metrics Histogram EventLoopThreads JmxMetricsReporter ServerMetrics TlsMetrics]
+           [fortress.ring.http RateLimiter SslEngineFactory TempDirectories TempSpaceExhaustedException]
+           [fortress.ring.log AccessLog]
+           [io.netty.channel.embedded EmbeddedChannel]
+           [io.netty.handler.codec.http DefaultHttpRequest HttpMethod HttpVersion]
+           [javax.net.ssl HostnameVerifier HttpsURLConnection KeyManager KeyManagerFactory SSLContext
+                          TrustManager X509TrustManager]))
 
 (def ^:const server "http://localhost:8080")
 (declare get post put make-request)
@@ -62,7 +70,10 @@
   (is (= "agoodresponse" (get "/ISeqResponse")))
   (is (= "afineresponse" (get "/InputStreamResponse")))
   (is (= (slurp "./test/fortress/ring/response.txt") (get "/FileResponse/response.txt")))
-  (is (= (slurp "./test/fortress/ring/response.json") (get "/FileResponse/response.json"))))
+  (is (= (slurp "./test/fortress/ring/response.json") (get "/FileResponse/response.json")))
+  (is (= "abytearray" (get "/BytesResponse")))
+  (is (= "abytebuffer" (get "/ByteBufferResponse")))
+  (is (= "abytebuf" (get "/ByteBufResponse"))))
 
 (deftest bad-responses
   (is (= "" (get "/EmptyResponse")))
@@ -102,6 +113,10 @@
   (GET "/InputStreamResponse" [] {:status 200 :body (io/input-stream (.getBytes "afineresponse"))})
   (GET "/FileResponse/:current-file" [current-file] (response/file-response (str "./test/fortress/ring/" current-file)))
   (GET "/EmptyResponse" [] {:status 200 :body nil})
+  (GET "/BytesResponse" [] {:status 200 :body (.getBytes "abytearray" "UTF-8")})
+  (GET "/ByteBufferResponse" [] {:status 200 :body (doto (java.nio.ByteBuffer/wrap (.getBytes "xxabytebuffer" "UTF-8"))
+                                                     (.position 2))})
+  (GET "/ByteBufResponse" [] {:status 200 :body (io.netty.buffer.Unpooled/copiedBuffer "abytebuf" java.nio.charset.StandardCharsets/UTF_8)})
   (GET "/Exception" [] exception-handler)
   (route/not-found "Unknown"))
 
@@ -121,3 +136,622 @@
 (def get (request client/get))
 (def post (request client/post))
 (def put (request client/put))
+
+(def ^:const test-port 8081)
+(def ^:const test-server (str "http://localhost:" test-port))
+
+(defmacro with-fortress
+  "Runs body with binding bound to a server on test-port started with the
+  given handler and options"
+  [[binding handler options] & body]
+  `(let [~binding (run-fortress ~handler (merge {:port test-port} ~options))]
+     (try
+       ~@body
+       (finally
+         (stop-fortress ~binding)))))
+
+(defn test-request
+  "Request to the test-port server, never throws on error statuses"
+  [method path & [options]]
+  (client/request (merge {:method method
+                          :url (str test-server path)
+                          :throw-exceptions false}
+                         options)))
+
+(deftest histogram-percentiles
+  (let [histogram (Histogram.)]
+    (doseq [value (range 1 1001)]
+      (.record histogram value))
+    (is (= 1000 (.getCount histogram)))
+    (is (= 1000 (.getMax histogram)))
+    (is (== 500.5 (.getMean histogram)))
+    (is (<= 480 (.percentile histogram 50) 500))
+    (is (<= 950 (.percentile histogram 99) 990))
+    (is (<= 960 (.percentile histogram 100) 1000)))
+  (testing "small values are exact and negative ones count as 0"
+    (let [histogram (Histogram.)]
+      (.record histogram 7)
+      (.record histogram -3)
+      (is (= 0 (.percentile histogram 50)))
+      (is (= 7 (.percentile histogram 100)))
+      (is (= {"count" 2 "max" 7} (select-keys (.snapshot histogram 1) ["count" "max"]))))))
+
+(deftest metrics-snapshot
+  (with-fortress [fortress test-routes {:temp-path (System/getProperty "java.io.tmpdir")}]
+    (is (= "Hello World" (:body (test-request :get "/"))))
+    ;; Completion is recorded by a listener of the write future
+    (Thread/sleep 100)
+    (let [metrics ((:metrics fortress))]
+      (is (= 1 (:requests metrics)))
+      (is (= 1 (get-in metrics [:status :2xx])))
+      (testing "data keys stay strings"
+        (is (every? string? (keys (get-in metrics [:temp-directories :directories]))))
+        (is (every? keyword? (keys (first (vals (get-in metrics [:temp-directories :directories]))))))))))
+
+(deftest drain-on-stop
+  (let [started (promise)
+        fortress (run-fortress (fn [_]
+                                 (deliver started true)
+                                 (Thread/sleep 300)
+                                 {:status 200 :body "drained"})
+                               {:port test-port})
+        idle (java.net.Socket. "localhost" (int test-port))
+        response (future (test-request :get "/"))]
+    @started
+    (stop-fortress fortress {:drain-timeout 5000})
+    (testing "the request in progress finishes and closes its connection"
+      (is (= "drained" (:body @response)))
+      (is (= "close" (get-in @response [:headers "connection"]))))
+    (testing "idle connections are closed"
+      (.setSoTimeout idle 1000)
+      (is (= -1 (.read (.getInputStream idle))))
+      (.close idle))))
+
+(deftest connection-limits
+  (with-fortress [fortress test-routes {:max-connections 1}]
+    (with-open [first-connection (java.net.Socket. "localhost" (int test-port))]
+      (Thread/sleep 100)
+      (with-open [second-connection (java.net.Socket. "localhost" (int test-port))]
+        (.setSoTimeout second-connection 1000)
+        (is (= -1 (.read (.getInputStream second-connection))))))
+    (Thread/sleep 100)
+    (is (= "Hello World" (:body (test-request :get "/")))))
+  (testing "concurrent accepts don't go past the limit"
+    (with-fortress [fortress test-routes {:max-connections 2 :threads 8}]
+      (let [sockets (doall (pmap (fn [_] (java.net.Socket. "localhost" (int test-port))) (range 16)))]
+        (try
+          (Thread/sleep 200)
+          (let [open? (fn [^java.net.Socket socket]
+                        (.setSoTimeout socket 100)
+                        (try
+                          (not= -1 (.read (.getInputStream socket)))
+                          (catch java.net.SocketTimeoutException _ true)
+                          (catch java.io.IOException _ false)))]
+            (is (= 2 (count (filter open? sockets))))
+            (is (= 14 (get-in ((:metrics fortress)) [:connection-limits :rejected]))))
+          (finally
+            (doseq [^java.net.Socket socket sockets]
+              (.close socket))))))))
+
+(deftest load-shedding
+  (let [release (promise)
+        started (promise)
+        log (java.io.StringWriter.)
+        handler (fn [request]
+                  (deliver started true)
+                  @release
+                  {:status 200 :body "done"})]
+    (with-fortress [fortress handler {:max-in-flight 1 :threads 4 :access-log log
+                                      :temp-path (System/getProperty "java.io.tmpdir")}]
+      (let [blocked (future (test-request :get "/"))]
+        @started
+        (let [shed (test-request :get "/")]
+          (is (= 503 (:status shed)))
+          (is (= "1" (get-in shed [:headers "retry-after"]))))
+        (testing "bodies of shed requests are not spilled"
+          (let [shed (test-request :post "/" {:headers {"Content-Type" "multipart/form-data; boundary=XX"}
+                                             :body "--XX\r\nContent-Disposition: form-data; name=\"f\"; filename=\"f.txt\"\r\n\r\nhello\r\n--XX--\r\n"})]
+            (is (= 503 (:status shed)))
+            (is (= 0 (get-in ((:metrics fortress)) [:uploads :started] 0)))))
+        (deliver release true)
+        (is (= "done" (:body @blocked)))
+        (Thread/sleep 100)
+        (testing "shed responses are recorded"
+          (is (= 2 (get-in ((:metrics fortress)) [:status :5xx]))))))
+    (is (re-find #" 503 " (str log)))))
+
+(deftest access-log-ring-buffer
+  (let [out (StringBuilder.)
+        blocked (promise)
+        release (promise)
+        writer (proxy [java.io.Writer] []
+                 (write
+                   ([text]
+                     (deliver blocked true)
+                     @release
+                     (.append out (str text)))
+                   ([text offset length]
+                     (.append out (String. ^chars text (int offset) (int length)))))
+                 (flush [])
+                 (close []))
+        access-log (AccessLog. writer 2)
+        request (DefaultHttpRequest. HttpVersion/HTTP_1_1 HttpMethod/GET "/logged")
+        log #(.log access-log request nil 200 10 (System/currentTimeMillis) 0 0 0)]
+    (is (log))
+    @blocked
+    (testing "entries are dropped, not waited for, once the buffer is full"
+      (is (log))
+      (is (log))
+      (is (not (log))))
+    (testing "a response still being written doesn't hold back the others"
+      (deliver release true)
+      (Thread/sleep 100)
+      (let [channel (EmbeddedChannel. (into-array io.netty.channel.ChannelHandler [(io.netty.channel.ChannelInboundHandlerAdapter.)]))
+            listener (.listener access-log request 404 0 0)]
+        (is (= 3 (.get (.snapshot access-log) "written")))
+        (is (log))
+        (is (log))
+        (Thread/sleep 100)
+        (is (= 5 (.get (.snapshot access-log) "written")))
+        (.addBytes listener 5)
+        (.operationComplete listener (.newSucceededFuture channel))))
+    (.stop access-log)
+    (is (= {"written" 6 "dropped" 1 "pending" 0} (.snapshot access-log)))
+    (is (= 6 (count (re-seq #"GET /logged HTTP/1.1" (str out)))))
+    (is (re-find #"\" 404 5 " (str out)))))
+
+(deftest response-charset-date-server
+  (let [handler (fn [request]
+                  {:status 200
+                   :headers (if (= "/named" (:uri request))
+                              {"Content-Type" "text/plain; charset=ISO-8859-1" "Server" "Named"}
+                              {"Content-Type" "text/plain; charset=\"UTF-16BE\""})
+                   :body "été"})]
+    (with-fortress [fortress handler {}]
+      (let [response (test-request :get "/named")]
+        (testing "strings are encoded with the charset of the content type"
+          (is (= "3" (get-in response [:headers "content-length"]))))
+        (testing "ring headers override the Server header"
+          (is (= "Named" (get-in response [:headers "server"])))))
+      (let [response (test-request :get "/quoted")]
+        (is (= "6" (get-in response [:headers "content-length"])))
+        (is (= "Fortress" (get-in response [:headers "server"])))
+        (testing "the Date header is an RFC 1123 date close to now"
+          (let [format (doto (java.text.SimpleDateFormat. "EEE, dd MMM yyyy HH:mm:ss zzz" java.util.Locale/US)
+                         (.setTimeZone (java.util.TimeZone/getTimeZone "GMT")))
+                date (.parse format (get-in response [:headers "date"]))]
+            (is (< (Math/abs (- (System/currentTimeMillis) (.getTime date))) 2000)))))))
+  (with-fortress [fortress test-routes {:server-header nil}]
+    (is (nil? (get-in (test-request :get "/") [:headers "server"])))))
+
+(defn- read-line-crlf [^java.io.InputStream in]
+  (loop [out (StringBuilder.)]
+    (let [c (.read in)]
+      (cond
+        (neg? c) (if (pos? (.length out)) (str out))
+        (= c (int \newline)) (string/trimr (str out))
+        :else (recur (.append out (char c)))))))
+
+(defn- read-response
+  "Reads one response with a Content-Length from a raw connection, nil
+  once the connection is closed"
+  [^java.io.InputStream in]
+  (when-let [status-line (read-line-crlf in)]
+    (let [headers (loop [headers {}]
+                    (let [line (read-line-crlf in)]
+                      (if (empty? line)
+                        headers
+                        (let [[_ k v] (re-find #"([^:]+):\s*(.*)" line)]
+                          (recur (assoc headers (.toLowerCase ^String k) v))))))
+          body (byte-array (Integer/parseInt (clojure.core/get headers "content-length" "0")))]
+      (loop [read 0]
+        (when (< read (alength body))
+          (recur (+ read (.read in body read (- (alength body) read))))))
+      {:status (Integer/parseInt (second (re-find #"^\S+ (\d+)" status-line)))
+       :headers headers
+       :body (String. body "UTF-8")})))
+
+(defn- pipelined
+  "Sends the raw requests on a single connection and reads n responses"
+  [n & requests]
+  (with-open [socket (java.net.Socket. "localhost" (int test-port))]
+    (.setSoTimeout socket 5000)
+    (let [out (.getOutputStream socket)
+          in (java.io.BufferedInputStream. (.getInputStream socket))]
+      (.write out (.getBytes ^String (apply str requests) "UTF-8"))
+      (.flush out)
+      (doall (take n (repeatedly #(read-response in)))))))
+
+(defn- upload-body [size]
+  (str "--XX\r\nContent-Disposition: form-data; name=\"f\"; filename=\"f.txt\"\r\n\r\n"
+       (apply str (repeat size "x"))
+       "\r\n--XX--\r\n"))
+
+(defn- upload-request [size & [headers]]
+  (let [body (upload-body size)]
+    (str "POST /upload HTTP/1.1\r\nHost: localhost\r\n"
+         "Content-Type: multipart/form-data; boundary=XX\r\n"
+         (apply str (for [[k v] headers] (str k ": " v "\r\n")))
+         "Content-Length: " (count body) "\r\n\r\n" body)))
+
+(deftest pipelining
+  (let [get-request #(str "GET " % " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+        handler (fn [{:keys [uri]}]
+                  (when (= "/slow" uri)
+                    (Thread/sleep 200))
+                  {:status 200 :body uri})]
+    (testing "responses leave in request order"
+      (with-fortress [fortress handler {:request-timeout 5000}]
+        (is (= ["/slow" "/fast" "/slow" "/fast"]
+               (map :body (pipelined 4 (get-request "/slow") (get-request "/fast")
+                                     (get-request "/slow") (get-request "/fast")))))))
+    (testing "more requests than max-pipelined are all answered"
+      (with-fortress [fortress handler {:max-pipelined 2 :request-timeout 5000}]
+        (is (= (map #(str "/" %) (range 6))
+               (map :body (apply pipelined 6 (map #(get-request (str "/" %)) (range 6))))))))
+    (testing "errors before the handler are answered in order and free their turn"
+      (with-fortress [fortress handler {:max-pipelined 2 :max-size 16 :temp-min-free (long 1e15)
+                                        :temp-path (System/getProperty "java.io.tmpdir")}]
+        (let [responses (pipelined 5 (upload-request 64) (upload-request 64) (get-request "/a")
+                                   (upload-request 64) (get-request "/b"))]
+          (is (= 5 (count (remove nil? responses))))
+          (is (= ["/a" "/b"] (map :body (filter #(= 200 (:status %)) responses))))
+          (is (= [false false true false true] (map #(= 200 (:status %)) responses))))
+        (Thread/sleep 100)
+        (is (= 3 (get-in ((:metrics fortress)) [:status :5xx])))))
+    (testing "handler errors are answered in their turn"
+      (with-fortress [fortress (fn [{:keys [uri]}]
+                                 (if (= "/boom" uri)
+                                   (throw (Exception. "boom"))
+                                   (handler {:uri uri})))
+                      {:request-timeout 5000}]
+        (is (= [200 500 200]
+               (map :status (pipelined 3 (get-request "/slow") (get-request "/boom") (get-request "/fast")))))))))
+
+(deftest rate-limiter
+  (testing "a burst of up to a tenth of a second goes through"
+    (let [limiter (RateLimiter. 1000)]
+      (Thread/sleep 150)
+      (is (zero? (.acquire limiter 100)))
+      (testing "then callers wait for the time the bytes take at the limit"
+        (is (<= 900e6 (.acquire limiter 1000) 1000e6)))
+      (is (= 1100 (.getBytes limiter)))))
+  (testing "without a limit bytes are only measured"
+    (let [limiter (RateLimiter. 0)]
+      (is (zero? (.acquire limiter 1000000)))
+      (is (= 1000000 (.getBytes limiter))))))
+
+(deftest route-shaping
+  (let [big (apply str (repeat 4000 "x"))
+        handler (fn [{:keys [uri]}]
+                  {:status 200 :body (if (= "/big" uri) big uri)})]
+    (with-fortress [fortress handler {:route-limits {"/small" {:write-limit 1000000}}}]
+      (let [request #(str "GET " % " HTTP/1.1\r\nHost: localhost\r\n\r\n")]
+        (is (= ["/small" big] (map :body (pipelined 2 (request "/small") (request "/big"))))))
+      (testing "each response is booked on the route of its own request"
+        (let [written (get-in ((:metrics fortress)) [:traffic-shaping :routes "/small" :write :bytes])]
+          (is (pos? written))
+          (is (< written 1000)))))))
+
+(defn- temp-dirs [n]
+  (doall (for [i (range n)]
+           (doto (java.io.File/createTempFile "fortress-test" (str i))
+             (.delete)
+             (.mkdir)))))
+
+(deftest temp-directory-selection
+  (let [[a b :as paths] (temp-dirs 2)
+        parent #(.getParentFile (.getFile ^fortress.ring.http.SpillFile %))]
+    (testing "round robin takes turns"
+      (let [dirs (TempDirectories. paths true 0)
+            files (doall (repeatedly 4 #(.create dirs 10 nil)))]
+        (is (= [a b a b] (map parent files)))
+        (doseq [file files] (.abort file))))
+    (testing "least outstanding picks the directory with the fewest bytes still to write"
+      (let [dirs (TempDirectories. paths false 0)
+            big (.create dirs 1000 nil)
+            small (.create dirs 10 nil)]
+        (is (= [a b] (map parent [big small])))
+        (is (= b (parent (.create dirs 10 nil))))
+        (.abort big)
+        (.abort small)))
+    (testing "directories without room are refused, huge sizes don't overflow"
+      (let [dirs (TempDirectories. paths false 1)]
+        (is (thrown? TempSpaceExhaustedException (.create dirs Long/MAX_VALUE nil)))
+        (is (thrown? TempSpaceExhaustedException (.create (TempDirectories. paths false Long/MAX_VALUE) 1 nil)))
+        (is (thrown? TempSpaceExhaustedException (.create (TempDirectories. paths false Long/MAX_VALUE) Long/MAX_VALUE nil)))
+        (is (= 1 (.get (.snapshot dirs) "full")))))
+    (doseq [path paths]
+      (doseq [file (.listFiles ^java.io.File path)] (.delete ^java.io.File file))
+      (.delete ^java.io.File path))))
+
+(deftest upload-without-room
+  (with-fortress [fortress (fn [_] {:status 200 :body "stored"})
+                  {:max-size 16 :temp-min-free Long/MAX_VALUE
+                   :temp-path (System/getProperty "java.io.tmpdir")}]
+    (let [[refused after] (pipelined 2 (upload-request 64)
+                                     "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n")]
+      (is (= 507 (:status refused)))
+      (testing "the rest of the upload is dropped and the connection stays usable"
+        (is (= "stored" (:body after)))))))
+
+(deftest upload-digests
+  (let [md5 (fn [^String text]
+              (javax.xml.bind.DatatypeConverter/printBase64Binary
+                (.digest (java.security.MessageDigest/getInstance "MD5") (.getBytes text "UTF-8"))))
+        handler (fn [request]
+                  {:status 200 :body (str (clojure.core/get (:upload-digests request) "MD5"))})]
+    (with-fortress [fortress handler {:max-size 16 :upload-digests ["MD5"]
+                                      :temp-path (System/getProperty "java.io.tmpdir")}]
+      (testing "a matching Content-MD5 reaches the handler"
+        (let [[response] (pipelined 1 (upload-request 64 {"Content-MD5" (md5 (upload-body 64))}))]
+          (is (= 200 (:status response)))
+          (is (= 32 (count (:body response))))))
+      (testing "a mismatch is refused"
+        (let [[response] (pipelined 1 (upload-request 64 {"Content-MD5" (md5 "something else")}))]
+          (is (= 400 (:status response)))
+          (is (= "close" (get-in response [:headers "connection"])))))
+      (testing "malformed digest headers are bad requests"
+        (doseq [headers [{"Content-MD5" "not*base64!"}
+                         {"Digest" "SHA-256=%%%%"}]]
+          (let [[response] (pipelined 1 (upload-request 64 headers))]
+            (is (= 400 (:status response)))
+            (is (re-find #"Malformed" (:body response)))))))
+    (testing "bodies aggregated in memory are checked too"
+      (with-fortress [fortress handler {:upload-digests ["MD5"]}]
+        (let [[matching mismatch] (pipelined 2 (upload-request 64 {"Content-MD5" (md5 (upload-body 64))})
+                                             (upload-request 64 {"Content-MD5" (md5 "something else")}))]
+          (is (= (:body matching)
+                 (apply str (map #(format "%02x" %) (.digest (java.security.MessageDigest/getInstance "MD5")
+                                                             (.getBytes ^String (upload-body 64) "UTF-8"))))))
+          (is (= 400 (:status mismatch))))
+        (let [response (test-request :post "/" {:body "{\"json\": true}"
+                                                :headers {"Content-MD5" (md5 "{}")}})]
+          (is (= 400 (:status response))))))))
+
+(deftest lazy-params
+  (let [handler (fn [request]
+                  {:status 200
+                   :body (pr-str (case (:uri request)
+                                   "/none" (contains? request :params)
+                                   "/keys" (contains? (set (keys request)) :params)
+                                   "/walk" (count (into {} request))
+                                   (select-keys request [:query-params :form-params :params])))})
+        form {:headers {"Content-Type" "application/x-www-form-urlencoded; charset=UTF-8"}}]
+    (with-fortress [fortress handler {:max-form-params 3 :max-size 16
+                                      :temp-path (System/getProperty "java.io.tmpdir")}]
+      (testing "uploads spilled to disk get their query params too"
+        (is (= {:query-params {"a" "1"} :form-params {} :params {"a" "1"}}
+               (read-string (:body (test-request :post "/?a=1"
+                                                 {:headers {"Content-Type" "multipart/form-data; boundary=XX"}
+                                                  :body (upload-body 64)}))))))
+      (testing "walking the keys does not parse, reading every value does"
+        (is (= "true" (:body (test-request :get "/keys?a=1&b=2&c=3&d=4"))))
+        (is (= 400 (:status (test-request :get "/walk?a=1&b=2&c=3&d=4"))))))
+    (with-fortress [fortress handler {:max-form-params 3}]
+      (testing "query and form params are decoded when first looked up"
+        (is (= {:query-params {"a" "1" "b" ["2" "3"]}
+                :form-params {"c" "é d"}
+                :params {"a" "1" "b" ["2" "3"] "c" "é d"}}
+               (read-string (:body (test-request :post "/?a=1&b=2&b=3" (assoc form :body "c=%C3%A9+d")))))))
+      (testing "too many params are a bad request, recorded as such"
+        (let [response (test-request :post "/" (assoc form :body "a=1&b=2&c=3&d=4"))]
+          (is (= 400 (:status response)))
+          (Thread/sleep 100)
+          (is (= 1 (get-in ((:metrics fortress)) [:status :4xx])))
+          (is (zero? (get-in ((:metrics fortress)) [:status :5xx] 0))))))
+    (with-fortress [fortress handler {:parse-params? false}]
+      (is (= "false" (:body (test-request :get "/none?a=1")))))))
+
+(deftest deadline-timeouts
+  (let [seen (promise)
+        handler (fn [request]
+                  (try
+                    (Thread/sleep 2000)
+                    {:status 200 :body "late"}
+                    (catch InterruptedException _
+                      (deliver seen [(cancelled? request) @(:cancel-flag request)])
+                      (throw (InterruptedException.)))))]
+    (with-fortress [fortress handler {:request-timeout 200}]
+      (testing "the deadline answers 504 and closes the connection"
+        (let [response (test-request :get "/")]
+          (is (= 504 (:status response)))
+          (is (= "close" (get-in response [:headers "connection"])))))
+      (testing "the handler is interrupted and sees the request cancelled"
+        (is (= [true true] (deref seen 1000 nil))))
+      (testing "requests can ask for a shorter deadline"
+        (let [started (System/currentTimeMillis)]
+          (is (= 504 (:status (test-request :get "/" {:headers {"X-Request-Timeout" "50"}}))))
+          (is (< (- (System/currentTimeMillis) started) 200))))
+      (Thread/sleep 100)
+      (is (= 2 (get-in ((:metrics fortress)) [:deadlines :timed-out])))))
+  (testing "requests are rejected with a 503 once the queue is full"
+    (let [release (promise)
+          started (promise)]
+      (with-fortress [fortress (fn [request]
+                                 (deliver started true)
+                                 @release
+                                 {:status 200 :body (str (cancelled? request))})
+                      {:request-timeout 5000 :request-threads 1 :request-queue 0}]
+        (let [busy (future (test-request :get "/"))]
+          @started
+          (let [rejected (test-request :get "/")]
+            (is (= 503 (:status rejected)))
+            (is (= "1" (get-in rejected [:headers "retry-after"]))))
+          (deliver release true)
+          (is (= "false" (:body @busy)))
+          (is (= 1 (get-in ((:metrics fortress)) [:deadlines :rejected]))))))))
+
+(deftest byte-body-release
+  (let [buffers (atom [])
+        handler (fn [{:keys [uri]}]
+                  (let [buffer (io.netty.buffer.Unpooled/copiedBuffer "released" java.nio.charset.StandardCharsets/UTF_8)]
+                    (swap! buffers conj buffer)
+                    (if (= "/late" uri)
+                      ;; Busy, so the interruption at the deadline goes unnoticed
+                      (let [until (+ (System/currentTimeMillis) 300)]
+                        (while (< (System/currentTimeMillis) until))
+                        {:status 200 :body buffer})
+                      {:status 200 :body buffer})))]
+    (with-fortress [fortress handler {:request-timeout 100}]
+      (testing "ByteBuf bodies are released once written"
+        (let [response (test-request :get "/")]
+          (is (= "released" (:body response)))
+          (is (= "8" (get-in response [:headers "content-length"])))))
+      (testing "and when the response is thrown away after the deadline"
+        (is (= 504 (:status (test-request :get "/late"))))
+        (Thread/sleep 400))
+      (is (= [0 0] (map #(.refCnt ^io.netty.buffer.ByteBuf %) @buffers))))))
+
+(deftest metrics-sampling
+  (testing "snapshots read the last utilization sample without resetting it"
+    (let [threads (EventLoopThreads. "sampling" false)
+          until (+ (System/currentTimeMillis) 300)
+          thread (.newThread threads #(while (< (System/currentTimeMillis) until)))]
+      (.start thread)
+      (.sample threads)
+      (Thread/sleep 100)
+      (.sample threads)
+      (.join thread)
+      (let [utilization #(-> (.snapshot threads) (clojure.core/get "loops") first (clojure.core/get "utilization"))
+            sampled (utilization)]
+        (is (pos? sampled))
+        (is (= sampled (utilization) (utilization))))))
+  (testing "JMX reads share a snapshot within the refresh interval"
+    (let [metrics (ServerMetrics.)
+          reporter (JmxMetricsReporter. "fortress:type=ServerMetrics,port=sampling" 60000)]
+      (.start reporter metrics)
+      (try
+        (is (= 0 (.getAttribute reporter "connections")))
+        (.connectionOpened metrics)
+        (is (= 0 (.getAttribute reporter "connections")))
+        (finally
+          (.stop reporter))))))
+
+(defn- stalling-handler [_]
+  (Thread/sleep 400)
+  {:status 200 :body "stalled"})
+
+(deftest event-loop-stalls
+  (with-fortress [fortress stalling-handler {:watchdog? true :watchdog-interval 20 :stall-threshold 100}]
+    ;; Lets every loop run a probe first, so the watchdog knows its thread
+    (Thread/sleep 100)
+    (is (= "stalled" (:body (test-request :get "/"))))
+    (Thread/sleep 100)
+    (let [{:keys [lag-us top-stalled-frames]} (:event-loops ((:metrics fortress)))
+          stalled (filter (comp pos? :stalls) (vals lag-us))]
+      (testing "the blocked loop reports one stall and the lag it caused"
+        (is (= 1 (count stalled)))
+        (is (= 1 (:stalls (first stalled))))
+        (is (<= 300000 (:max (first stalled)))))
+      (testing "the offending frame is the handler, not the JDK or netty"
+        (is (re-find #"stalling_handler" (ffirst top-stalled-frames)))
+        (is (pos? (val (first top-stalled-frames))))))))
+
+(deftest access-log-bytes
+  (let [log (java.io.StringWriter.)
+        get-request #(str "GET " % " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+        handler (fn [{:keys [uri]}]
+                  (if (= "/stream" uri)
+                    {:status 200 :body (java.io.ByteArrayInputStream. (.getBytes "streamed"))}
+                    (do
+                      (when (= "/slow" uri)
+                        (Thread/sleep 200))
+                      {:status 200 :body uri})))]
+    (with-fortress [fortress handler {:access-log log :request-timeout 5000}]
+      (is (= ["/slow" "/longer-uri"]
+             (map :body (pipelined 2 (get-request "/slow") (get-request "/longer-uri")))))
+      (is (= "streamed" (:body (test-request :get "/stream")))))
+    (testing "each response counts the bytes of its own body"
+      (is (= ["5" "11" "8"]
+             (map #(second (re-find #"\" 200 (\d+) " %)) (string/split-lines (str log))))))))
+
+(deftest pipelining-closed-connection
+  (let [buffers (atom [])
+        handler (fn [{:keys [uri]}]
+                  (if (= "/slow" uri)
+                    (do
+                      (Thread/sleep 300)
+                      {:status 200 :body "slow"})
+                    (let [buffer (io.netty.buffer.Unpooled/copiedBuffer "fast" java.nio.charset.StandardCharsets/UTF_8)]
+                      (swap! buffers conj buffer)
+                      {:status 200 :body buffer})))]
+    (with-fortress [fortress handler {:request-timeout 5000}]
+      (with-open [socket (java.net.Socket. "localhost" (int test-port))]
+        (.write (.getOutputStream socket)
+                (.getBytes "GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\nGET /fast HTTP/1.1\r\nHost: localhost\r\n\r\n"))
+        (.flush (.getOutputStream socket))
+        (Thread/sleep 100))
+      (Thread/sleep 500)
+      (testing "responses queued behind a closed connection are completed and released"
+        (is (zero? (:in-flight ((:metrics fortress)))))
+        (is (= [0] (map #(.refCnt ^io.netty.buffer.ByteBuf %) @buffers)))))))
+
+(defn test-key-managers
+  "Key managers of the self-signed localhost certificate in test.jks"
+  []
+  (let [password (.toCharArray "secret")
+        keystore (doto (java.security.KeyStore/getInstance "JKS")
+                   (.load (io/input-stream "./test/fortress/ring/test.jks") password))]
+    (seq (.getKeyManagers (doto (KeyManagerFactory/getInstance "SunX509")
+                            (.init keystore password))))))
+
+(deftest ssl-engine-factory
+  (let [key-managers (into-array KeyManager (test-key-managers))]
+    (testing "openssl falls back to the JDK engine without Conscrypt"
+      (let [metrics (TlsMetrics.)
+            factory (SslEngineFactory. nil key-managers "openssl" 100 60 true metrics)]
+        (is (not (.isOpenSsl factory)))
+        (is (not (.getUseClientMode (.newEngine factory))))
+        (is (= "jdk" (clojure.core/get (.snapshot metrics) "engine")))))
+    (testing "the session cache size and timeout are applied to the given context"
+      (let [context (doto (SSLContext/getInstance "TLS")
+                      (.init key-managers nil nil))
+            factory (SslEngineFactory. context nil "jdk" 100 60 false nil)]
+        (is (identical? context (.getContext factory)))
+        (is (= 100 (.getSessionCacheSize (.getServerSessionContext context))))
+        (is (= 60 (.getSessionTimeout (.getServerSessionContext context))))))))
+
+(deftest tls-resumption
+  (let [trust-all (doto (SSLContext/getInstance "TLS")
+                    (.init nil
+                           (into-array TrustManager [(reify X509TrustManager
+                                                       (getAcceptedIssuers [_] (make-array java.security.cert.X509Certificate 0))
+                                                       (checkClientTrusted [_ chain auth-type])
+                                                       (checkServerTrusted [_ chain auth-type]))])
+                           nil))
+        secure-get (fn []
+                     (let [^HttpsURLConnection connection (.openConnection (java.net.URL. "https://localhost:8443/"))]
+                       (.setSSLSocketFactory connection (.getSocketFactory trust-all))
+                       (.setHostnameVerifier connection (reify HostnameVerifier (verify [_ host session] true)))
+                       (.setRequestProperty connection "Connection" "close")
+                       (slurp (.getInputStream connection))))]
+    (with-fortress [fortress test-routes {:ssl? true :ssl-port 8443 :ssl-key-managers (test-key-managers)}]
+      (is (= ["Hello World" "Hello World" "Hello World"] (repeatedly 3 secure-get)))
+      (Thread/sleep 100)
+      (testing "every connection handshakes and the later ones resume the first session"
+        (let [tls (:tls ((:metrics fortress)))]
+          (is (= "jdk" (:engine tls)))
+          (is (= 3 (:handshakes tls)))
+          (is (= 2 (:resumed tls))))))))
+
+(deftest deadline-rejected-on-shutdown
+  (let [stopped (promise)
+        buffers (atom [])
+        request-buffer (doto (.getDeclaredField io.netty.buffer.ByteBufInputStream "buffer")
+                         (.setAccessible true))
+        handler (fn [{:keys [body]}]
+                  (let [buffer (io.netty.buffer.Unpooled/copiedBuffer "late" java.nio.charset.StandardCharsets/UTF_8)]
+                    (swap! buffers conj (.get request-buffer body) buffer)
+                    ;; Busy, so the interruption of the shutdown goes unnoticed
+                    (while (not (realized? stopped)))
+                    {:status 200 :body buffer}))
+        fortress (run-fortress handler {:port test-port :request-timeout 5000 :drain-timeout 0})]
+    (future (test-request :post "/" {:body "request"}))
+    (while (empty? @buffers)
+      (Thread/sleep 10))
+    (stop-fortress fortress)
+    (deliver stopped true)
+    (Thread/sleep 100)
+    (testing "a handler finishing after the event loop is gone releases the request and its response"
+      (is (= [0 0] (map #(.refCnt ^io.netty.buffer.ByteBuf %) @buffers))))))